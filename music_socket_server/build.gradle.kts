@@ -8,7 +8,7 @@ version = "1.0.0"
 
 java {
     toolchain {
-        languageVersion.set(JavaLanguageVersion.of(17)) // یا 21 اگه JDK 21 داری
+        languageVersion.set(JavaLanguageVersion.of(21))
     }
 }
 
@@ -18,13 +18,14 @@ repositories {
 
 dependencies {
     implementation("com.google.code.gson:gson:2.10.1")
+    implementation("org.xerial:sqlite-jdbc:3.44.1.0")
     testImplementation(platform("org.junit:junit-bom:5.11.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 application {
-    // چون کلاس main در default package است:
-    mainClass.set("SocketMusicServer")
+    mainClass.set("org.example.SocketMusicServer")
 }
 
 tasks.test {
@@ -0,0 +1,261 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+// ====== پروتکل دودویی (روی همان پورت) ======
+// دست‌دهی: کلاینت بلافاصله بعد از اتصال 4 بایت MAGIC می‌فرستد و سرور همان را پس می‌فرستد.
+// بعد از آن هر پیام یک frame است:  [طول payload: u32 big-endian][payload]
+//   درخواست: [actionId u8][reqId str][token str][data value]   (بیت 0x80 در actionId یعنی sync)
+//   پاسخ:    [0=ok][reqId str][result value]  یا  [1=error][reqId str][error str]
+//   رویداد:   [2=event][event value]
+// str = varint(طول+1) و سپس UTF-8 (صفر یعنی null). value یک تگ یک‌بایتی و سپس محتوا دارد؛
+// Song/Comment/User بدون نام فیلد و با ترتیب ثابت نوشته می‌شوند، شناسه‌های UUID به صورت 16 بایت
+// و تاریخ‌ها به ثانیه‌ی epoch.
+final class BinaryCodec {
+    static final byte[] MAGIC = {(byte) 0xB1, 'M', 'S', 1};
+    static final int MAX_FRAME = 1 << 20;
+
+    // ترتیب بخشی از پروتکل است؛ فقط به انتها اضافه شود
+    static final String[] ACTIONS = {
+        null, "signup", "login", "me", "updateProfile", "addCredit", "subscription",
+        "purchase", "categories", "songs", "rate", "comments", "addComment", "likeComment", "batch"
+    };
+
+    static final int OK = 0, ERROR = 1, EVENT = 2;
+    static final int T_NULL = 0, T_FALSE = 1, T_TRUE = 2, T_INT = 3, T_DOUBLE = 4, T_STR = 5,
+            T_LIST = 6, T_MAP = 7, T_SONG = 8, T_COMMENT = 9, T_USER = 10;
+
+    private BinaryCodec() {}
+
+    // data همان record های Requests را می‌سازد؛ بعد از خوانده شدن reqId خطا به صورت Invalid برمی‌گردد
+    static Request decodeRequest(byte[] b, int off, int len) {
+        Reader r = new Reader(b, off, len);
+        int id = r.u8();
+        String action = ActionHandler.actionName(id & 0x7F);
+        String reqId = r.str();
+        String token = r.str();
+        Object data;
+        try {
+            JsonElement tree = r.value();
+            if (r.pos != r.end) throw new IllegalArgumentException("trailing bytes in frame");
+            data = Requests.data(action, tree);
+        } catch (IOException | RuntimeException ex) {
+            data = new Requests.Invalid("malformed request: " + ex.getMessage());
+        }
+        return new Request(reqId, action, token, data, (id & 0x80) != 0);
+    }
+
+    static byte[] encode(Response res) {
+        Writer w = new Writer(256);
+        w.u8(res.ok() ? OK : ERROR);
+        w.str(res.reqId());
+        if (res.ok()) w.value(res.result()); else w.str(res.error());
+        return w.frame();
+    }
+
+    static byte[] event(Map<String,Object> event) {
+        Writer w = new Writer(256);
+        w.u8(EVENT);
+        w.value(event);
+        return w.frame();
+    }
+
+    // ---------- نوشتن ----------
+    static final class Writer {
+        private byte[] buf;
+        private int pos = 4; // جای طول frame
+
+        Writer(int size) { buf = new byte[Math.max(16, size)]; }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(pos + n, buf.length * 2));
+        }
+
+        void u8(int v) { ensure(1); buf[pos++] = (byte) v; }
+
+        void varlong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) { buf[pos++] = (byte) ((v & 0x7F) | 0x80); v >>>= 7; }
+            buf[pos++] = (byte) v;
+        }
+
+        void zigzag(long v) { varlong((v << 1) ^ (v >> 63)); }
+
+        void i64(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) buf[pos++] = (byte) (v >>> (i * 8));
+        }
+
+        void f64(double d) { i64(Double.doubleToRawLongBits(d)); }
+
+        void str(String s) {
+            if (s == null) { varlong(0); return; }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varlong(b.length + 1L);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        // شناسه: UUID استاندارد در 16 بایت، در غیر این صورت رشته
+        void id(String s) {
+            long[] uuid = parseUuid(s);
+            if (uuid == null) { u8(0); str(s); return; }
+            u8(16);
+            i64(uuid[0]);
+            i64(uuid[1]);
+        }
+
+        void value(Object v) {
+            if (v == null) { u8(T_NULL); }
+            else if (v instanceof Boolean b) { u8(b ? T_TRUE : T_FALSE); }
+            else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+                u8(T_INT); zigzag(((Number) v).longValue());
+            }
+            else if (v instanceof Number n) { u8(T_DOUBLE); f64(n.doubleValue()); }
+            else if (v instanceof CharSequence cs) { u8(T_STR); str(cs.toString()); }
+            else if (v instanceof Song s) { u8(T_SONG); song(s); }
+            else if (v instanceof Comment c) { u8(T_COMMENT); comment(c); }
+            else if (v instanceof User u) { u8(T_USER); user(u); }
+            else if (v instanceof Map<?,?> m) {
+                u8(T_MAP); varlong(m.size());
+                for (Map.Entry<?,?> e : m.entrySet()) { str(String.valueOf(e.getKey())); value(e.getValue()); }
+            }
+            else if (v instanceof Collection<?> c) {
+                u8(T_LIST); varlong(c.size());
+                for (Object x : c) value(x);
+            }
+            else { u8(T_STR); str(String.valueOf(v)); }
+        }
+
+        void song(Song s) {
+            id(s.id); str(s.title); str(s.artist); str(s.category);
+            f64(s.price); f64(s.ratingAverage); varlong(s.ratingCount); varlong(s.downloads);
+            str(s.albumArtUrl()); str(s.sourceUrl()); varlong(s.addedAt / 1000);
+        }
+
+        void comment(Comment c) {
+            id(c.id); id(c.songId); str(c.user); str(c.text);
+            long v = c.votes();
+            varlong(Comment.likes(v)); varlong(Comment.dislikes(v)); varlong(c.createdAt.getTime() / 1000);
+        }
+
+        void user(User u) {
+            id(u.id); str(u.username); str(u.email); f64(u.credit); u8(u.premium ? 1 : 0);
+        }
+
+        byte[] frame() {
+            int len = pos - 4;
+            buf[0] = (byte) (len >>> 24); buf[1] = (byte) (len >>> 16); buf[2] = (byte) (len >>> 8); buf[3] = (byte) len;
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    // ---------- خواندن (فقط انواع عمومی؛ درخواست‌ها Song/Comment/User ندارند) ----------
+    static final class Reader {
+        private final byte[] b;
+        int pos;
+        final int end;
+
+        Reader(byte[] b, int off, int len) { this.b = b; this.pos = off; this.end = off + len; }
+
+        private void need(int n) {
+            if (end - pos < n) throw new IllegalArgumentException("truncated frame");
+        }
+
+        int u8() { need(1); return b[pos++] & 0xFF; }
+
+        long varlong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int x = u8();
+                v |= (long) (x & 0x7F) << shift;
+                if ((x & 0x80) == 0) return v;
+            }
+            throw new IllegalArgumentException("bad varint");
+        }
+
+        long zigzag() { long v = varlong(); return (v >>> 1) ^ -(v & 1); }
+
+        double f64() {
+            need(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) v = (v << 8) | (b[pos++] & 0xFF);
+            return Double.longBitsToDouble(v);
+        }
+
+        String str() {
+            long n = varlong();
+            if (n == 0) return null;
+            int len = (int) (n - 1);
+            if (n < 0 || n - 1 > end - pos) throw new IllegalArgumentException("truncated frame");
+            String s = new String(b, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        JsonElement value() {
+            int tag = u8();
+            return switch (tag) {
+                case T_NULL -> JsonNull.INSTANCE;
+                case T_FALSE -> new JsonPrimitive(false);
+                case T_TRUE -> new JsonPrimitive(true);
+                case T_INT -> new JsonPrimitive(zigzag());
+                case T_DOUBLE -> new JsonPrimitive(f64());
+                case T_STR -> {
+                    String s = str();
+                    yield s == null ? JsonNull.INSTANCE : new JsonPrimitive(s);
+                }
+                case T_LIST -> {
+                    int n = count();
+                    JsonArray l = new JsonArray(n);
+                    for (int i = 0; i < n; i++) l.add(value());
+                    yield l;
+                }
+                case T_MAP -> {
+                    int n = count();
+                    JsonObject m = new JsonObject();
+                    for (int i = 0; i < n; i++) m.add(str(), value());
+                    yield m;
+                }
+                default -> throw new IllegalArgumentException("unexpected tag: " + tag);
+            };
+        }
+
+        // هر عنصر حداقل یک بایت است، پس تعداد بزرگ‌تر از باقی frame نامعتبر است
+        private int count() {
+            long n = varlong();
+            if (n > end - pos) throw new IllegalArgumentException("bad length");
+            return (int) n;
+        }
+    }
+
+    // UUID کوچک‌حرف و استاندارد (8-4-4-4-12)؛ فقط در این صورت رفت و برگشت بی‌اتلاف است
+    static long[] parseUuid(String s) {
+        if (s == null || s.length() != 36) return null;
+        long hi = 0, lo = 0;
+        int digits = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return null;
+                continue;
+            }
+            int d;
+            if (c >= '0' && c <= '9') d = c - '0';
+            else if (c >= 'a' && c <= 'f') d = c - 'a' + 10;
+            else return null;
+            if (digits < 16) hi = (hi << 4) | d; else lo = (lo << 4) | d;
+            digits++;
+        }
+        return new long[]{hi, lo};
+    }
+}
@@ -0,0 +1,229 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+
+// ====== snapshot دودویی ======
+// سرآیند ثابت 64 بایتی و سپس چهار بخش؛ همه‌ی اعداد little-endian:
+//   سرآیند:  MAGIC u32, FORMAT u32, version i64, journalSeq i64,
+//            strings u32, users u32, songs u32, comments u32,
+//            offset رشته‌ها i64, offset کاربران i64, offset آهنگ‌ها i64  (بقیه صفر)
+//   رشته‌ها:  [طول u32][UTF-8]  — هر رشته‌ی متمایز فقط یک بار؛ بقیه‌ی بخش‌ها با اندیس u32 به آن اشاره می‌کنند
+//            (NONE یعنی null)
+//   کاربران:  id name email password (اندیس) credit f64, premium u8, تعداد خرید u32, اندیس آهنگ‌های خریده‌شده
+//   آهنگ‌ها:  رکورد ثابت SONG_BYTES: id title artist category albumArtUrl sourceUrl (اندیس)
+//            price f64, ratingAverage f64, ratingCount i32, downloads i32, playCount i32, addedAt i64 (ms)
+//   نظرها:   رکورد ثابت COMMENT_BYTES: id songId user text (اندیس) likes i32, dislikes i32, createdAt i64 (ms)
+// بارگذاری فایل را با FileChannel.map می‌خواند؛ بدون Map میانی، بدون parse تاریخ، با ساختن هر رشته یک بار و موازی.
+final class BinarySnapshot {
+    static final int MAGIC = 0x504E534D; // "MSNP"
+    static final int FORMAT = 1;
+    static final int HEADER_BYTES = 64;
+    static final int SONG_BYTES = 6 * 4 + 8 + 8 + 4 + 4 + 4 + 8;
+    static final int COMMENT_BYTES = 4 * 4 + 4 + 4 + 8;
+    private static final int NONE = -1;
+
+    private BinarySnapshot() {}
+
+    // ---------- نوشتن ----------
+    // هر بخش می‌تواند خالی باشد (segment های Persister فقط یک نوع موجودیت دارند)؛
+    // songs به ترتیب Catalog.songsOldestFirst
+    static void write(long version, long journalSeq, Collection<User> users, List<Song> songs, List<Comment> comments,
+                      File file) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (User u : users) {
+            intern(ids, strings, u.id, u.username, u.email, u.password);
+            for (String p : u.purchased) intern(ids, strings, p);
+        }
+        for (Song s : songs) intern(ids, strings, s.id, s.title, s.artist, s.category, s.albumArtUrl(), s.sourceUrl());
+        for (Comment cm : comments) intern(ids, strings, cm.id, cm.songId, cm.user, cm.text);
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            Out out = new Out(new BufferedOutputStream(fos, 1 << 16));
+            out.skip(HEADER_BYTES);
+            long stringsAt = out.pos;
+            for (String s : strings) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.i32(b.length);
+                out.bytes(b);
+            }
+            long usersAt = out.pos;
+            for (User u : users) {
+                out.i32(ids.get(u.id)); out.i32(ids.get(u.username)); out.i32(ref(ids, u.email)); out.i32(ref(ids, u.password));
+                out.f64(u.credit);
+                out.u8(u.premium ? 1 : 0);
+                out.i32(u.purchased.size());
+                for (String p : u.purchased) out.i32(ids.get(p));
+            }
+            long songsAt = out.pos;
+            for (Song s : songs) {
+                out.i32(ids.get(s.id)); out.i32(ref(ids, s.title)); out.i32(ref(ids, s.artist)); out.i32(ref(ids, s.category));
+                out.i32(ref(ids, s.albumArtUrl())); out.i32(ref(ids, s.sourceUrl()));
+                out.f64(s.price); out.f64(s.ratingAverage);
+                out.i32(s.ratingCount); out.i32(s.downloads); out.i32(s.playCount);
+                out.i64(s.addedAt);
+            }
+            for (Comment cm : comments) {
+                out.i32(ids.get(cm.id)); out.i32(ids.get(cm.songId)); out.i32(ref(ids, cm.user)); out.i32(ref(ids, cm.text));
+                long v = cm.votes();
+                out.i32(Comment.likes(v)); out.i32(Comment.dislikes(v));
+                out.i64(cm.createdAt.getTime());
+            }
+            out.flush();
+
+            ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(MAGIC).putInt(FORMAT).putLong(version).putLong(journalSeq)
+                    .putInt(strings.size()).putInt(users.size()).putInt(songs.size()).putInt(comments.size())
+                    .putLong(stringsAt).putLong(usersAt).putLong(songsAt);
+            h.clear();
+            FileChannel ch = fos.getChannel();
+            while (h.hasRemaining()) ch.write(h, h.position());
+            fos.getFD().sync();
+        }
+    }
+
+    private static void intern(Map<String, Integer> ids, List<String> strings, String... values) {
+        for (String v : values) {
+            if (v != null && ids.putIfAbsent(v, strings.size()) == null) strings.add(v);
+        }
+    }
+
+    private static int ref(Map<String, Integer> ids, String s) {
+        return s == null ? NONE : ids.get(s);
+    }
+
+    // DataOutputStream big-endian است؛ این نسخه little-endian و موقعیت را هم نگه می‌دارد
+    private static final class Out {
+        private final OutputStream out;
+        private final byte[] b = new byte[8];
+        long pos;
+
+        Out(OutputStream out) { this.out = out; }
+
+        void skip(int n) throws IOException { out.write(new byte[n]); pos += n; }
+        void u8(int v) throws IOException { out.write(v); pos++; }
+        void bytes(byte[] v) throws IOException { out.write(v); pos += v.length; }
+        void i32(int v) throws IOException {
+            b[0] = (byte) v; b[1] = (byte) (v >>> 8); b[2] = (byte) (v >>> 16); b[3] = (byte) (v >>> 24);
+            out.write(b, 0, 4);
+            pos += 4;
+        }
+        void i64(long v) throws IOException {
+            for (int i = 0; i < 8; i++) b[i] = (byte) (v >>> (8 * i));
+            out.write(b, 0, 8);
+            pos += 8;
+        }
+        void f64(double d) throws IOException { i64(Double.doubleToRawLongBits(d)); }
+        void flush() throws IOException { out.flush(); }
+    }
+
+    // ---------- خواندن ----------
+    // رشته‌ها، آهنگ‌ها و نظرها تکه‌تکه و موازی (Parallel) decode می‌شوند؛ رکوردهای آهنگ و نظر اندازه‌ی ثابت
+    // دارند و جای رکورد i ام مستقیم حساب می‌شود، برای رشته‌ها یک پیمایش ترتیبی فقط offset ها را پیدا می‌کند.
+    // خواندن‌های absolute روی buffer نگاشت‌شده thread-safe اند.
+    static Catalog.Part read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("snapshot too large for one mapping: " + size);
+            if (size < HEADER_BYTES) throw new IOException("truncated snapshot");
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt(0) != MAGIC) throw new IOException("not a snapshot file");
+            if (buf.getInt(4) != FORMAT) throw new IOException("unsupported snapshot format: " + buf.getInt(4));
+            long version = buf.getLong(8), journalSeq = buf.getLong(16);
+            int nStrings = buf.getInt(24), nUsers = buf.getInt(28), nSongs = buf.getInt(32), nComments = buf.getInt(36);
+            // سرآیند خراب نباید با سرریز int از این بررسی‌ها رد شود: حساب در long و بعد تبدیل
+            long stringsAtL = buf.getLong(40), usersAtL = buf.getLong(48), songsAtL = buf.getLong(56);
+            if (nStrings < 0 || nUsers < 0 || nSongs < 0 || nComments < 0
+                    || stringsAtL < HEADER_BYTES || usersAtL < stringsAtL || songsAtL < usersAtL
+                    || songsAtL + (long) nSongs * SONG_BYTES + (long) nComments * COMMENT_BYTES != size) {
+                throw new IOException("snapshot size mismatch");
+            }
+            int usersAt = (int) usersAtL, songsAt = (int) songsAtL;
+            int commentsAt = (int) (songsAtL + (long) nSongs * SONG_BYTES);
+
+            int[] at = new int[nStrings];
+            long p = stringsAtL;
+            for (int i = 0; i < nStrings; i++) {
+                if (p + 4 > usersAt) throw new IOException("snapshot size mismatch");
+                at[i] = (int) p;
+                int len = buf.getInt(at[i]);
+                if (len < 0) throw new IOException("snapshot size mismatch");
+                p += 4L + len;
+            }
+            if (p != usersAt) throw new IOException("snapshot size mismatch");
+            String[] strings = new String[nStrings];
+            Parallel.range(0, nStrings, (from, to) -> {
+                byte[] tmp = new byte[256];
+                for (int i = from; i < to; i++) {
+                    int len = buf.getInt(at[i]);
+                    if (len > tmp.length) tmp = new byte[Math.max(len, tmp.length * 2)];
+                    buf.get(at[i] + 4, tmp, 0, len);
+                    strings[i] = new String(tmp, 0, len, StandardCharsets.UTF_8);
+                }
+            });
+
+            // کاربران طول متغیر دارند و کم‌اند: یک task ترتیبی کنار تکه‌های آهنگ و نظر
+            User[] users = new User[nUsers];
+            Song[] songs = new Song[nSongs];
+            Comment[] comments = new Comment[nComments];
+            Parallel.all(List.of(
+                    ForkJoinTask.adapt(() -> {
+                        int q = usersAt;
+                        for (int i = 0; i < nUsers; i++) {
+                            User u = new User(str(strings, buf.getInt(q)), str(strings, buf.getInt(q + 4)),
+                                    str(strings, buf.getInt(q + 8)), str(strings, buf.getInt(q + 12)));
+                            u.credit = buf.getDouble(q + 16);
+                            u.premium = buf.get(q + 24) != 0;
+                            int n = buf.getInt(q + 25);
+                            q += 29;
+                            for (int k = 0; k < n; k++, q += 4) u.purchased.add(strings[buf.getInt(q)]);
+                            users[i] = u;
+                        }
+                        if (q != songsAt) throw new IOException("snapshot size mismatch");
+                        return null;
+                    }),
+                    Parallel.task(0, nSongs, (from, to) -> {
+                        for (int i = from, q = songsAt + from * SONG_BYTES; i < to; i++, q += SONG_BYTES) {
+                            Song s = new Song(str(strings, buf.getInt(q)), str(strings, buf.getInt(q + 4)), str(strings, buf.getInt(q + 8)),
+                                    str(strings, buf.getInt(q + 12)), buf.getDouble(q + 24), buf.getDouble(q + 32), buf.getInt(q + 44),
+                                    str(strings, buf.getInt(q + 16)), str(strings, buf.getInt(q + 20)));
+                            s.ratingCount = buf.getInt(q + 40);
+                            s.playCount = buf.getInt(q + 48);
+                            s.addedAt = buf.getLong(q + 52);
+                            songs[i] = s;
+                        }
+                    }),
+                    Parallel.task(0, nComments, (from, to) -> {
+                        for (int i = from, q = commentsAt + from * COMMENT_BYTES; i < to; i++, q += COMMENT_BYTES) {
+                            Comment c = new Comment(str(strings, buf.getInt(q)), str(strings, buf.getInt(q + 4)),
+                                    str(strings, buf.getInt(q + 8)), str(strings, buf.getInt(q + 12)));
+                            c.votes(buf.getInt(q + 16), buf.getInt(q + 20));
+                            c.createdAt = new Date(buf.getLong(q + 24));
+                            comments[i] = c;
+                        }
+                    })));
+            return new Catalog.Part(version, journalSeq, Arrays.asList(users), Arrays.asList(songs), Arrays.asList(comments));
+        } catch (RuntimeException e) {
+            // خطای یک task ممکن است یکی دو لایه (join و adapt) پیچیده شده باشد
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof IOException io) throw io;
+                if (t instanceof IndexOutOfBoundsException) throw new IOException("corrupt snapshot", t);
+            }
+            throw e;
+        }
+    }
+
+    private static String str(String[] strings, int i) {
+        return i == NONE ? null : strings[i];
+    }
+}
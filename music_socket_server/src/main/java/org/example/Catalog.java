@@ -0,0 +1,268 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+
+// ====== نسخه‌ی تغییرناپذیر کاتالوگ و کاربران (MVCC) ======
+// هر commit یک Catalog تازه می‌سازد که ساختارهای تغییرنکرده را با نسخه‌ی قبل شریک است (map ها HashTrie اند،
+// پس هر نوشتن فقط مسیر کلید خودش را کپی می‌کند نه کل map را) و با یک نوشتن
+// volatile در ServerState.catalog منتشر می‌شود. User/Song/Comment داخل نسخه‌ی منتشرشده هرگز تغییر
+// نمی‌کنند؛ نویسنده با copy() نمونه‌ی تازه می‌سازد. پس خواننده‌ها و persister با یک بار خواندن catalog
+// یک نمای سازگار دارند، بدون قفل. تنها استثنا شمارنده‌های رأی Comment است که در جا و اتمی زیاد می‌شوند.
+final class Catalog {
+    // ترتیب فهرست هر دسته: جدیدترین اول و برای addedAt برابر، id بزرگ‌تر اول (همان ترتیب اندیس SQLite)
+    static final Comparator<Song> NEWEST_FIRST =
+            Comparator.<Song>comparingLong(s -> s.addedAt).thenComparing(s -> s.id).reversed();
+    static final int MAX_PAGE = 500;
+
+    static final Catalog EMPTY = new Catalog(0, HashTrie.empty(), HashTrie.empty(), HashTrie.empty(), HashTrie.empty(), Map.of(), HashTrie.empty(), Map.of());
+
+    final long version;
+    final HashTrie<String, User> usersById, usersByName, usersByEmail;
+    final HashTrie<String, Song> songsById;
+    final Map<String, SongIndex> byCategory; // مرتب با NEWEST_FIRST
+    final HashTrie<String, CommentLog> commentsBySong;
+    // شناسه -> نظر برای رأی در O(1). نظرها حذف نمی‌شوند، پس به جای کپی در هر نسخه یک map هم‌روند بین همه‌ی
+    // نسخه‌های پشت سر هم مشترک است و ممکن است نظرهای نسخه‌های بعدی را هم داشته باشد؛ فقط نویسنده‌ها (زیر
+    // قفل، روی آخرین نسخه) از آن می‌خوانند
+    final Map<String, Comment> commentsById;
+
+    private Catalog(long version, HashTrie<String, User> usersById, HashTrie<String, User> usersByName, HashTrie<String, User> usersByEmail,
+                    HashTrie<String, Song> songsById, Map<String, SongIndex> byCategory, HashTrie<String, CommentLog> commentsBySong,
+                    Map<String, Comment> commentsById) {
+        this.version = version;
+        this.usersById = usersById;
+        this.usersByName = usersByName;
+        this.usersByEmail = usersByEmail;
+        this.songsById = songsById;
+        this.byCategory = byCategory;
+        this.commentsBySong = commentsBySong;
+        this.commentsById = commentsById;
+    }
+
+    Catalog at(long v) {
+        return new Catalog(v, usersById, usersByName, usersByEmail, songsById, byCategory, commentsBySong, commentsById);
+    }
+
+    // کاربر جدید یا نسخه‌ی تازه‌ی کاربر موجود (همراه با اندیس نام و ایمیل)
+    Catalog withUser(User u) {
+        User old = usersById.get(u.id);
+        HashTrie<String, User> byName = usersByName, byEmail = usersByEmail;
+        if (old != null) {
+            if (byName.get(old.username) == old) byName = byName.minus(old.username);
+            if (byEmail.get(old.email) == old) byEmail = byEmail.minus(old.email);
+        }
+        return new Catalog(version, usersById.plus(u.id, u), byName.plus(u.username, u), byEmail.plus(u.email, u),
+                songsById, byCategory, commentsBySong, commentsById);
+    }
+
+    // آهنگ جدید سر جای مرتبش می‌نشیند؛ نسخه‌ی تازه‌ی آهنگ موجود (همان addedAt و id) جای قبلی را می‌گیرد.
+    // songsById و اندیس دسته هر دو O(log n) کپی می‌شوند و map دسته‌ها فقط به اندازه‌ی تعداد دسته‌ها
+    Catalog withSong(Song s) {
+        Map<String, SongIndex> cats = new LinkedHashMap<>(byCategory);
+        cats.put(s.category, byCategory.getOrDefault(s.category, SongIndex.EMPTY).with(s));
+        return new Catalog(version, usersById, usersByName, usersByEmail, songsById.plus(s.id, s), freeze(cats), commentsBySong, commentsById);
+    }
+
+    // نظر تازه (O(1) برای فهرست آهنگ و O(log n) برای map آهنگ‌ها)، یا نسخه‌ی دیگری از نظر موجود (import).
+    // اگر نسخه‌ی import شده مال آهنگ دیگری باشد، مثل بقیه‌ی import مقدار تازه برنده است و نظر جابه‌جا می‌شود
+    Catalog withComment(Comment c) {
+        // EMPTY بین همه‌ی ServerState ها مشترک است؛ اولین نظر اندیس خودِ این زنجیره‌ی نسخه‌ها را می‌سازد
+        Map<String, Comment> byId = commentsById == EMPTY.commentsById ? new ConcurrentHashMap<>() : commentsById;
+        Comment old = byId.put(c.id, c);
+        HashTrie<String, CommentLog> comments = commentsBySong;
+        if (old != null && !old.songId.equals(c.songId)) {
+            CommentLog from = comments.getOrDefault(old.songId, CommentLog.EMPTY);
+            int i = from.indexOf(c.id);
+            if (i >= 0) comments = comments.plus(old.songId, from.without(i));
+        }
+        CommentLog log = comments.getOrDefault(c.songId, CommentLog.EMPTY);
+        int i = old == null ? -1 : log.indexOf(c.id);
+        log = i >= 0 ? log.replace(i, c) : log.with(c);
+        return new Catalog(version, usersById, usersByName, usersByEmail, songsById, byCategory, comments.plus(c.songId, log), byId);
+    }
+
+    // ---------- صفحه‌بندی keyset ----------
+    // cursor کلید (addedAt, id) آخرین آهنگ صفحه‌ی قبل است، پس هزینه‌ی هر صفحه یک جستجوی دودویی است
+    // و درج آهنگ تازه صفحه‌های بعدی را جابه‌جا نمی‌کند. next برای صفحه‌ی آخر null است.
+    record Page(List<Song> songs, String next) {}
+
+    Page songs(String category, String cursor, int limit) {
+        SongIndex index = byCategory.getOrDefault(category, SongIndex.EMPTY);
+        int from = cursor == null ? 0 : after(index, cursor);
+        int to = Math.min(index.size(), from + Math.min(limit, MAX_PAGE));
+        List<Song> page = index.range(from, to);
+        String next = to < index.size() && to > from ? cursor(page.get(page.size() - 1)) : null;
+        return new Page(page, next);
+    }
+
+    static String cursor(Song s) {
+        String key = s.addedAt + ":" + s.id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    // کلید (addedAt, id) داخل cursor؛ SqliteStorage هم همین cursor را می‌سازد و می‌خواند
+    record Key(long addedAt, String id) {}
+
+    static Key key(String cursor) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), java.nio.charset.StandardCharsets.UTF_8);
+            int colon = key.indexOf(':');
+            return new Key(Long.parseLong(key.substring(0, colon)), key.substring(colon + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+    }
+
+    // اندیس اولین آهنگی که در ترتیب NEWEST_FIRST بعد از کلید cursor می‌آید
+    private static int after(SongIndex index, String cursor) {
+        Key k = key(cursor);
+        return index.after(k.addedAt(), k.id());
+    }
+
+    // همه‌ی آهنگ‌ها، هر دسته قدیمی‌ترین اول (ترتیب درج)، تا Builder از روی آن همان ترتیب دسته‌ها را بسازد
+    List<Song> songsOldestFirst() {
+        List<Song> songs = new ArrayList<>(songsById.size());
+        for (SongIndex index : byCategory.values())
+            for (int i = index.size() - 1; i >= 0; i--) songs.add(index.get(i));
+        return songs;
+    }
+
+    // کل نسخه به شکل یک Part (snapshot برای follower، و پایه‌ی Builder در ServerState.importShard)
+    Part part() {
+        List<Comment> comments = new ArrayList<>();
+        for (CommentLog list : commentsBySong.values()) comments.addAll(list);
+        return new Part(version, 0, new ArrayList<>(usersById.values()), songsOldestFirst(), comments);
+    }
+
+    private static <V> Map<String, V> freeze(Map<String, V> m) {
+        return Collections.unmodifiableMap(m);
+    }
+
+    // ---------- هدف replay ورودی‌های ژورنال (ServerState.apply) ----------
+    // Builder هنگام بارگذاری، و Editor روی نسخه‌ی منتشرشده وقتی follower جریان تغییرهای primary را اعمال می‌کند
+    interface Target {
+        long version();
+        void version(long v);
+        User user(String id);
+        Song song(String id);
+        Comment comment(String commentId);
+        void putUser(User u);
+        void putSong(Song s);
+        void putComment(Comment c);
+    }
+
+    static final class Editor implements Target {
+        Catalog catalog;
+
+        Editor(Catalog c) { catalog = c; }
+
+        @Override public long version() { return catalog.version; }
+        @Override public void version(long v) { catalog = catalog.at(v); }
+        @Override public User user(String id) { return catalog.usersById.get(id); }
+        @Override public Song song(String id) { return catalog.songsById.get(id); }
+        @Override public Comment comment(String commentId) { return catalog.commentsById.get(commentId); }
+        @Override public void putUser(User u) { catalog = catalog.withUser(u); }
+        @Override public void putSong(Song s) { catalog = catalog.withSong(s); }
+        @Override public void putComment(Comment c) { catalog = catalog.withComment(c); }
+    }
+
+    // ---------- ساختن یکجای یک نسخه (بارگذاری snapshot و replay ژورنال) ----------
+    // محتوای decode شده‌ی یک فایل snapshot (یا segment)؛ songs به ترتیب songsOldestFirst
+    record Part(long version, long journalSeq, List<User> users, List<Song> songs, List<Comment> comments) {}
+
+    // آهنگ‌ها فقط در songsById جایگزین می‌شوند و هر دسته شناسه‌هایش را به ترتیب اولین درج نگه می‌دارد؛
+    // build هر دسته را یک بار مرتب و اندیسش را در O(n) می‌سازد
+    static final class Builder implements Target {
+        long version;
+        final Map<String, User> usersById = new HashMap<>();
+        final Map<String, User> usersByName = new HashMap<>();
+        final Map<String, User> usersByEmail = new HashMap<>();
+        final Map<String, Song> songsById = new HashMap<>();
+        final Map<String, List<String>> byCategory = new LinkedHashMap<>();
+        final Map<String, List<Comment>> commentsBySong = new HashMap<>();
+        final Map<String, Comment> commentsById = new HashMap<>();
+        private final Map<String, Integer> commentAt = new HashMap<>(); // جایگاه هر نظر در فهرست آهنگش
+
+        @Override public long version() { return version; }
+        @Override public void version(long v) { version = v; }
+        @Override public User user(String id) { return usersById.get(id); }
+        @Override public Song song(String id) { return songsById.get(id); }
+
+        @Override
+        public void putUser(User u) {
+            User old = usersById.put(u.id, u);
+            if (old != null) {
+                usersByName.remove(old.username, old);
+                usersByEmail.remove(old.email, old);
+            }
+            usersByName.put(u.username, u);
+            usersByEmail.put(u.email, u);
+        }
+
+        @Override
+        public void putSong(Song s) {
+            if (songsById.put(s.id, s) == null) byCategory.computeIfAbsent(s.category, k -> new ArrayList<>()).add(s.id);
+        }
+
+        @Override
+        public void putComment(Comment c) {
+            Comment old = commentsById.put(c.id, c);
+            if (old != null) {
+                List<Comment> from = commentsBySong.get(old.songId);
+                int at = commentAt.get(c.id);
+                if (old.songId.equals(c.songId)) {
+                    from.set(at, c);
+                    return;
+                }
+                from.set(at, null); // جابه‌جا شده به آهنگ دیگر؛ خانه‌ی خالی در build() حذف می‌شود
+            }
+            List<Comment> list = commentsBySong.computeIfAbsent(c.songId, k -> new ArrayList<>());
+            commentAt.put(c.id, list.size());
+            list.add(c);
+        }
+
+        // کاربران، آهنگ‌ها و نظرها با سه task موازی؛ هر task فقط اندیس‌های خودش را می‌نویسد و ترتیب part ها حفظ می‌شود
+        void putAll(List<Part> parts) {
+            Parallel.all(List.of(
+                    ForkJoinTask.adapt(() -> { for (Part p : parts) for (User u : p.users()) putUser(u); }),
+                    ForkJoinTask.adapt(() -> { for (Part p : parts) for (Song s : p.songs()) putSong(s); }),
+                    ForkJoinTask.adapt(() -> { for (Part p : parts) for (Comment c : p.comments()) putComment(c); })));
+        }
+
+        @Override
+        public Comment comment(String commentId) { return commentsById.get(commentId); }
+
+        // مرتب‌سازی و اندیس هر دسته و کپی هر map یک task جدا
+        Catalog build() {
+            Map<String, ForkJoinTask<SongIndex>> indexes = new LinkedHashMap<>();
+            byCategory.forEach((k, ids) -> indexes.put(k, ForkJoinTask.adapt(() -> {
+                List<Song> l = new ArrayList<>(ids.size());
+                for (String id : ids) l.add(songsById.get(id));
+                l.sort(NEWEST_FIRST);
+                return SongIndex.of(l);
+            })));
+            ForkJoinTask<HashTrie<String, User>> byId = ForkJoinTask.adapt(() -> HashTrie.of(usersById));
+            ForkJoinTask<HashTrie<String, User>> byName = ForkJoinTask.adapt(() -> HashTrie.of(usersByName));
+            ForkJoinTask<HashTrie<String, User>> byEmail = ForkJoinTask.adapt(() -> HashTrie.of(usersByEmail));
+            ForkJoinTask<HashTrie<String, Song>> songs = ForkJoinTask.adapt(() -> HashTrie.of(songsById));
+            ForkJoinTask<HashTrie<String, CommentLog>> comments = ForkJoinTask.adapt(() -> {
+                Map<String, CommentLog> m = new HashMap<>();
+                commentsBySong.forEach((k, v) -> {
+                    if (v.removeIf(Objects::isNull) && v.isEmpty()) return;
+                    m.put(k, CommentLog.of(v));
+                });
+                return HashTrie.of(m);
+            });
+            ForkJoinTask<Map<String, Comment>> commentIds = ForkJoinTask.adapt(() -> new ConcurrentHashMap<>(commentsById));
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(indexes.values());
+            tasks.addAll(List.of(byId, byName, byEmail, songs, comments, commentIds));
+            Parallel.all(tasks);
+            Map<String, SongIndex> cats = new LinkedHashMap<>();
+            indexes.forEach((k, t) -> cats.put(k, t.join()));
+            return new Catalog(version, byId.join(), byName.join(), byEmail.join(),
+                    songs.join(), freeze(cats), comments.join(), commentIds.join());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.example;
+
+import java.util.*;
+
+// ====== نظرهای یک آهنگ ======
+// فهرست فقط-افزودنی به ترتیب درج در تکه‌های CHUNK تایی. همه‌ی نسخه‌های فهرست یک آهنگ یک Store مشترک دارند
+// و هر نسخه فقط size خودش را می‌بیند: with() نظر را در خانه‌ی بعد از انتهای Store می‌نویسد، پس افزودن O(1)
+// سرشکن است و فهرست کپی نمی‌شود. خانه‌های زیر size یک نسخه‌ی منتشرشده دیگر عوض نمی‌شوند و هر نسخه آرایه‌ی
+// تکه‌هایش را در یک فیلد final دارد، پس مثل بقیه‌ی Catalog بدون قفل خوانده می‌شود. افزودن به نسخه‌ای که آخرین
+// نسخه‌ی Store نیست یک Store تازه کپی می‌کند؛ جایگزینی یک نظر (import) فقط آرایه‌ی تکه‌ها و تکه‌ی همان نظر را.
+// جایگاه هر نظر ثابت است و cursor صفحه‌ها همان جایگاه است.
+final class CommentLog extends AbstractList<Comment> implements RandomAccess {
+    static final int CHUNK = 256;
+    static final CommentLog EMPTY = new CommentLog(null, new Comment[0][], 0);
+
+    // فقط نویسنده (زیر قفل state یا تنها thread سازنده)
+    private static final class Store {
+        Comment[][] chunks = new Comment[1][];
+        int size;
+        // شناسه -> جایگاه؛ Store هایی که replace از هم می‌سازد آن را شریک‌اند، پس فقط یک راهنماست و indexOf
+        // آن را با خود فهرست می‌سنجد
+        Map<String, Integer> at = new HashMap<>();
+
+        void add(Comment c) {
+            int k = size / CHUNK;
+            if (k == chunks.length) chunks = Arrays.copyOf(chunks, k * 2);
+            if (chunks[k] == null) chunks[k] = new Comment[CHUNK];
+            chunks[k][size % CHUNK] = c;
+            at.put(c.id, size);
+            size++;
+        }
+    }
+
+    private final Store store;
+    private final Comment[][] chunks;
+    private final int size;
+
+    private CommentLog(Store store, Comment[][] chunks, int size) {
+        this.store = store;
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    static CommentLog of(List<Comment> comments) {
+        Store s = new Store();
+        for (Comment c : comments) s.add(c);
+        return new CommentLog(s, s.chunks, s.size);
+    }
+
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public Comment get(int i) {
+        Objects.checkIndex(i, size);
+        return chunks[i / CHUNK][i % CHUNK];
+    }
+
+    CommentLog with(Comment c) {
+        if (store == null || store.size != size) return of(this).with(c);
+        store.add(c);
+        return new CommentLog(store, store.chunks, size + 1);
+    }
+
+    // جایگاه نظر با این شناسه در این نسخه، یا -1
+    int indexOf(String id) {
+        Integer p = store == null ? null : store.at.get(id);
+        if (p != null && p < size && get(p).id.equals(id)) return p;
+        for (int i = 0; i < size; i++) if (get(i).id.equals(id)) return i;
+        return -1;
+    }
+
+    // نسخه‌ی دیگری از نظر جایگاه i. تکه‌های پر دیگر شریک می‌مانند؛ تکه‌ی i و تکه‌ی نیمه‌پر انتها کپی می‌شوند
+    // تا افزودن به Store تازه در خانه‌های Store قبلی ننویسد
+    CommentLog replace(int i, Comment c) {
+        Objects.checkIndex(i, size);
+        Store s = new Store();
+        s.chunks = Arrays.copyOf(chunks, chunks.length);
+        s.size = size;
+        s.at = store.at;
+        int tail = size / CHUNK;
+        for (int k = tail; k < s.chunks.length; k++) s.chunks[k] = k == tail && chunks[k] != null ? chunks[k].clone() : null;
+        if (i / CHUNK != tail) s.chunks[i / CHUNK] = chunks[i / CHUNK].clone();
+        s.chunks[i / CHUNK][i % CHUNK] = c;
+        return new CommentLog(s, s.chunks, size);
+    }
+
+    // بدون نظر جایگاه i (نظری که import به آهنگ دیگری برده)؛ نادر است و کل فهرست کپی می‌شود
+    CommentLog without(int i) {
+        Objects.checkIndex(i, size);
+        List<Comment> rest = new ArrayList<>(this);
+        rest.remove(i);
+        return of(rest);
+    }
+
+    // ---------- صفحه‌بندی، جدیدترین اول ----------
+    // cursor تعداد نظرهایی است که هنوز نمایش داده نشده‌اند (جایگاه بعد از آخرین نظر صفحه‌ی بعد)؛ نظرهای تازه
+    // به انتها اضافه می‌شوند و صفحه‌های بعدی را جابه‌جا نمی‌کنند. next برای صفحه‌ی آخر null است.
+    record Page(List<Comment> comments, String next) {}
+
+    Page page(String cursor, int limit) {
+        int to = cursor == null ? size : position(cursor);
+        int from = Math.max(0, to - Math.min(limit, Catalog.MAX_PAGE));
+        List<Comment> page = new ArrayList<>(to - from);
+        for (int i = to - 1; i >= from; i--) page.add(get(i));
+        return new Page(page, from > 0 ? Integer.toString(from) : null);
+    }
+
+    private int position(String cursor) {
+        try {
+            int p = Integer.parseInt(cursor);
+            if (p >= 0 && p <= size) return p;
+        } catch (NumberFormatException ignored) {}
+        throw new IllegalArgumentException("invalid cursor");
+    }
+}
@@ -2,320 +2,688 @@ package org.example;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
+// یک اتصال (پشت lock) با journal_mode=WAL. سرور فقط از thread نویسنده‌ی SqliteStorage و هنگام load به
+// اینجا می‌رسد و خواندن‌ها از Catalog جواب داده می‌شوند، پس pool خواننده لازم نیست. اتصال PreparedStatement
+// هایش را نگه می‌دارد تا هر group commit همان statement ها را دوباره به کار ببرد و SQL دوباره parse نشود.
 public class Database implements AutoCloseable {
     private final String url; // jdbc:sqlite:music.db
-    private Connection conn;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Conn conn;
 
     public Database(String url) {
         this.url = url;
     }
 
+    // یک اتصال و کش statement هایش؛ در هر لحظه فقط دست یک thread است
+    private static final class Conn {
+        final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Conn(Connection conn) { this.conn = conn; }
+
+        PreparedStatement ps(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) statements.put(sql, ps = conn.prepareStatement(sql));
+            else ps.clearParameters();
+            return ps;
+        }
+
+        void close() {
+            for (PreparedStatement ps : statements.values()) {
+                try { ps.close(); } catch (SQLException ignored) {}
+            }
+            try { conn.close(); } catch (SQLException ignored) {}
+        }
+    }
+
+    private interface Query<T> {
+        T run(Conn c) throws SQLException;
+    }
+
     public void connect() throws SQLException {
-        if (conn == null || conn.isClosed()) {
-            conn = DriverManager.getConnection(url);
-            conn.createStatement().execute("PRAGMA foreign_keys = ON");
+        if (conn != null) return;
+        synchronized (this) {
+            if (conn != null) return;
+            Connection c = DriverManager.getConnection(url);
+            try (Statement st = c.createStatement()) {
+                st.execute("PRAGMA journal_mode=WAL");
+                st.execute("PRAGMA foreign_keys = ON");
+                st.execute("PRAGMA busy_timeout = 5000");
+            }
+            conn = new Conn(c);
         }
     }
 
-    public void initSchemaIfNeeded() throws SQLException {
+    private <T> T run(Query<T> q) throws SQLException {
         connect();
-        // جداول
-        try (Statement st = conn.createStatement()) {
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS users (
-                  id TEXT PRIMARY KEY,
-                  username TEXT UNIQUE NOT NULL,
-                  email TEXT UNIQUE NOT NULL,
-                  password TEXT NOT NULL,
-                  credit REAL NOT NULL DEFAULT 200.0,
-                  premium INTEGER NOT NULL DEFAULT 0
-                )
-            """);
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS tokens (
-                  token TEXT PRIMARY KEY,
-                  userId TEXT NOT NULL,
-                  createdAt TEXT NOT NULL,
-                  FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
-                )
-            """);
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS songs (
-                  id TEXT PRIMARY KEY,
-                  title TEXT NOT NULL,
-                  artist TEXT NOT NULL,
-                  category TEXT NOT NULL,
-                  price REAL NOT NULL,
-                  ratingAverage REAL NOT NULL,
-                  ratingCount INTEGER NOT NULL,
-                  downloads INTEGER NOT NULL,
-                  albumArtUrl TEXT NOT NULL,
-                  sourceUrl TEXT NOT NULL,
-                  addedAt TEXT NOT NULL
-                )
-            """);
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS comments (
-                  id TEXT PRIMARY KEY,
-                  songId TEXT NOT NULL,
-                  user TEXT NOT NULL,
-                  text TEXT NOT NULL,
-                  likes INTEGER NOT NULL DEFAULT 0,
-                  dislikes INTEGER NOT NULL DEFAULT 0,
-                  createdAt TEXT NOT NULL,
-                  FOREIGN KEY (songId) REFERENCES songs(id) ON DELETE CASCADE
-                )
-            """);
-            st.execute("CREATE INDEX IF NOT EXISTS idx_songs_category ON songs(category)");
-            st.execute("CREATE INDEX IF NOT EXISTS idx_comments_song ON comments(songId)");
+        lock.lock();
+        try {
+            return q.run(conn);
+        } finally {
+            lock.unlock();
         }
     }
 
+    public void initSchemaIfNeeded() throws SQLException {
+        // جداول
+        run(c -> {
+            try (Statement st = c.conn.createStatement()) {
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS users (
+                      id TEXT PRIMARY KEY,
+                      username TEXT UNIQUE NOT NULL,
+                      email TEXT UNIQUE NOT NULL,
+                      password TEXT NOT NULL,
+                      credit REAL NOT NULL DEFAULT 200.0,
+                      premium INTEGER NOT NULL DEFAULT 0
+                    )
+                """);
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS tokens (
+                      token TEXT PRIMARY KEY,
+                      userId TEXT NOT NULL,
+                      createdAt TEXT NOT NULL,
+                      FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
+                    )
+                """);
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS songs (
+                      id TEXT PRIMARY KEY,
+                      title TEXT NOT NULL,
+                      artist TEXT NOT NULL,
+                      category TEXT NOT NULL,
+                      price REAL NOT NULL,
+                      ratingAverage REAL NOT NULL,
+                      ratingCount INTEGER NOT NULL,
+                      downloads INTEGER NOT NULL,
+                      albumArtUrl TEXT NOT NULL,
+                      sourceUrl TEXT NOT NULL,
+                      addedAt TEXT NOT NULL
+                    )
+                """);
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS comments (
+                      id TEXT PRIMARY KEY,
+                      songId TEXT NOT NULL,
+                      user TEXT NOT NULL,
+                      text TEXT NOT NULL,
+                      likes INTEGER NOT NULL DEFAULT 0,
+                      dislikes INTEGER NOT NULL DEFAULT 0,
+                      createdAt TEXT NOT NULL,
+                      FOREIGN KEY (songId) REFERENCES songs(id) ON DELETE CASCADE
+                    )
+                """);
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS purchases (
+                      userId TEXT NOT NULL,
+                      songId TEXT NOT NULL,
+                      PRIMARY KEY (userId, songId),
+                      FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE
+                    )
+                """);
+                // صفحه‌های listSongsByCategory مستقیم از این اندیس خوانده می‌شوند (جای idx_songs_category قدیمی را هم می‌گیرد)
+                st.execute("CREATE INDEX IF NOT EXISTS idx_songs_category_added ON songs(category, addedAt, id)");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_comments_song ON comments(songId)");
+            }
+            return null;
+        });
+    }
+
     // ---------- USERS ----------
+    private static final String INSERT_USER = """
+        INSERT INTO users(id, username, email, password, credit, premium) VALUES(?,?,?,?,?,?)
+    """;
+
     public void insertUser(User u) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            INSERT INTO users(id, username, email, password, credit, premium) VALUES(?,?,?,?,?,?)
-        """)) {
-            ps.setString(1, u.id);
-            ps.setString(2, u.username);
-            ps.setString(3, u.email);
-            ps.setString(4, u.password);
-            ps.setDouble(5, u.credit);
-            ps.setInt(6, u.premium ? 1 : 0);
-            ps.executeUpdate();
-        }
+        run(c -> {
+            PreparedStatement ps = c.ps(INSERT_USER);
+            bindUser(ps, u);
+            return ps.executeUpdate();
+        });
+    }
+
+    // کاربران همراه با خریدهایشان، با addBatch و در یک تراکنش
+    public void insertUsers(Collection<User> users) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps(INSERT_USER);
+            for (User u : users) { bindUser(ps, u); ps.addBatch(); }
+            ps.executeBatch();
+            ps = c.ps(INSERT_PURCHASE);
+            for (User u : users) {
+                for (String songId : u.purchased) { ps.setString(1, u.id); ps.setString(2, songId); ps.addBatch(); }
+            }
+            return ps.executeBatch();
+        }));
+    }
+
+    private static void bindUser(PreparedStatement ps, User u) throws SQLException {
+        ps.setString(1, u.id);
+        ps.setString(2, u.username);
+        ps.setString(3, u.email);
+        ps.setString(4, u.password);
+        ps.setDouble(5, u.credit);
+        ps.setInt(6, u.premium ? 1 : 0);
     }
 
     public User findUserByUsername(String username) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            SELECT id, username, email, password, credit, premium FROM users WHERE username=?
-        """)) {
+        return run(c -> {
+            PreparedStatement ps = c.ps("""
+                SELECT id, username, email, password, credit, premium FROM users WHERE username=?
+            """);
             ps.setString(1, username);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                User u = new User(
-                        rs.getString("id"),
-                        rs.getString("username"),
-                        rs.getString("email"),
-                        rs.getString("password")
-                );
-                u.credit = rs.getDouble("credit");
-                u.premium = rs.getInt("premium") == 1;
-                return u;
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? userRow(rs) : null;
             }
-            return null;
-        }
+        });
     }
 
     public User findUserByEmail(String email) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            SELECT id, username, email, password, credit, premium FROM users WHERE email=?
-        """)) {
+        return run(c -> {
+            PreparedStatement ps = c.ps("""
+                SELECT id, username, email, password, credit, premium FROM users WHERE email=?
+            """);
             ps.setString(1, email);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                User u = new User(
-                        rs.getString("id"),
-                        rs.getString("username"),
-                        rs.getString("email"),
-                        rs.getString("password")
-                );
-                u.credit = rs.getDouble("credit");
-                u.premium = rs.getInt("premium") == 1;
-                return u;
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? userRow(rs) : null;
             }
-            return null;
-        }
+        });
     }
 
     public void updateUserBasic(User u) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            UPDATE users SET username=?, email=?, credit=?, premium=? WHERE id=?
-        """)) {
+        run(c -> {
+            PreparedStatement ps = c.ps("""
+                UPDATE users SET username=?, email=?, credit=?, premium=? WHERE id=?
+            """);
             ps.setString(1, u.username);
             ps.setString(2, u.email);
             ps.setDouble(3, u.credit);
             ps.setInt(4, u.premium ? 1 : 0);
             ps.setString(5, u.id);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+    }
+
+    // درج یا جایگزینی همه‌ی فیلدها (به جز خریدها)
+    public void upsertUser(User u) throws SQLException {
+        run(c -> {
+            PreparedStatement ps = c.ps("""
+                INSERT INTO users(id, username, email, password, credit, premium) VALUES(?,?,?,?,?,?)
+                ON CONFLICT(id) DO UPDATE SET username=excluded.username, email=excluded.email,
+                  password=excluded.password, credit=excluded.credit, premium=excluded.premium
+            """);
+            bindUser(ps, u);
+            return ps.executeUpdate();
+        });
+    }
+
+    public void updateUserCredit(String userId, double credit) throws SQLException {
+        run(c -> {
+            PreparedStatement ps = c.ps("""
+                UPDATE users SET credit=? WHERE id=?
+            """);
+            ps.setDouble(1, credit);
+            ps.setString(2, userId);
+            return ps.executeUpdate();
+        });
+    }
+
+    private static final String INSERT_PURCHASE = """
+        INSERT OR IGNORE INTO purchases(userId, songId) VALUES(?,?)
+    """;
+
+    public void insertPurchase(String userId, String songId) throws SQLException {
+        run(c -> {
+            PreparedStatement ps = c.ps(INSERT_PURCHASE);
+            ps.setString(1, userId);
+            ps.setString(2, songId);
+            return ps.executeUpdate();
+        });
+    }
+
+    // همه‌ی کاربران همراه با آهنگ‌های خریده‌شده
+    public List<User> listUsers() throws SQLException {
+        return run(c -> {
+            Map<String, User> users = new LinkedHashMap<>();
+            try (ResultSet rs = c.ps("SELECT id, username, email, password, credit, premium FROM users ORDER BY rowid").executeQuery()) {
+                while (rs.next()) {
+                    User u = userRow(rs);
+                    users.put(u.id, u);
+                }
+            }
+            try (ResultSet rs = c.ps("SELECT userId, songId FROM purchases").executeQuery()) {
+                while (rs.next()) {
+                    User u = users.get(rs.getString(1));
+                    if (u != null) u.purchased.add(rs.getString(2));
+                }
+            }
+            return new ArrayList<>(users.values());
+        });
+    }
+
+    private static User userRow(ResultSet rs) throws SQLException {
+        User u = new User(
+                rs.getString("id"),
+                rs.getString("username"),
+                rs.getString("email"),
+                rs.getString("password")
+        );
+        u.credit = rs.getDouble("credit");
+        u.premium = rs.getInt("premium") == 1;
+        return u;
     }
 
     // ---------- TOKENS ----------
     public void upsertToken(String token, String userId) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            INSERT INTO tokens(token, userId, createdAt) VALUES(?,?,datetime('now'))
-            ON CONFLICT(token) DO UPDATE SET userId=excluded.userId, createdAt=datetime('now')
-        """)) {
+        run(c -> {
+            PreparedStatement ps = c.ps("""
+                INSERT INTO tokens(token, userId, createdAt) VALUES(?,?,datetime('now'))
+                ON CONFLICT(token) DO UPDATE SET userId=excluded.userId, createdAt=datetime('now')
+            """);
             ps.setString(1, token);
             ps.setString(2, userId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
     }
 
     public String getUserIdByToken(String token) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            SELECT userId FROM tokens WHERE token=?
-        """)) {
+        return run(c -> {
+            PreparedStatement ps = c.ps("""
+                SELECT userId FROM tokens WHERE token=?
+            """);
             ps.setString(1, token);
-            ResultSet rs = ps.executeQuery();
-            return rs.next() ? rs.getString(1) : null;
-        }
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
     }
 
     // ---------- SONGS ----------
+    private static final String INSERT_SONG = """
+        INSERT INTO songs(id, title, artist, category, price, ratingAverage, ratingCount, downloads, albumArtUrl, sourceUrl, addedAt)
+        VALUES(?,?,?,?,?,?,?,?,?,?,?)
+    """;
+
     public void insertSong(Song s) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            INSERT INTO songs(id, title, artist, category, price, ratingAverage, ratingCount, downloads, albumArtUrl, sourceUrl, addedAt)
-            VALUES(?,?,?,?,?,?,?,?,?,?,?)
-        """)) {
-            ps.setString(1, s.id);
-            ps.setString(2, s.title);
-            ps.setString(3, s.artist);
-            ps.setString(4, s.category);
-            ps.setDouble(5, s.price);
-            ps.setDouble(6, s.ratingAverage);
-            ps.setInt(7, s.ratingCount);
-            ps.setInt(8, s.downloads);
-            ps.setString(9, s.albumArtUrl);
-            ps.setString(10, s.sourceUrl);
-            ps.setString(11, Song.iso(s.addedAt));
-            ps.executeUpdate();
-        }
+        run(c -> {
+            PreparedStatement ps = c.ps(INSERT_SONG);
+            bindSong(ps, s);
+            return ps.executeUpdate();
+        });
+    }
+
+    // با addBatch و در یک تراکنش (یک fsync برای کل کاتالوگ)
+    public void insertSongs(List<Song> songs) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps(INSERT_SONG);
+            for (Song s : songs) { bindSong(ps, s); ps.addBatch(); }
+            return ps.executeBatch();
+        }));
+    }
+
+    // آهنگ موجود فقط شمارنده‌هایش را می‌گیرد (REPLACE نظرهایش را با ON DELETE CASCADE پاک می‌کرد)
+    public void upsertSongs(List<Song> songs) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps("""
+                INSERT INTO songs(id, title, artist, category, price, ratingAverage, ratingCount, downloads, albumArtUrl, sourceUrl, addedAt)
+                VALUES(?,?,?,?,?,?,?,?,?,?,?)
+                ON CONFLICT(id) DO UPDATE SET ratingAverage=excluded.ratingAverage, ratingCount=excluded.ratingCount,
+                  downloads=excluded.downloads
+            """);
+            for (Song s : songs) { bindSong(ps, s); ps.addBatch(); }
+            return ps.executeBatch();
+        }));
+    }
+
+    private static void bindSong(PreparedStatement ps, Song s) throws SQLException {
+        ps.setString(1, s.id);
+        ps.setString(2, s.title);
+        ps.setString(3, s.artist);
+        ps.setString(4, s.category);
+        ps.setDouble(5, s.price);
+        ps.setDouble(6, s.ratingAverage);
+        ps.setInt(7, s.ratingCount);
+        ps.setInt(8, s.downloads);
+        ps.setString(9, s.albumArtUrl());
+        ps.setString(10, s.sourceUrl());
+        ps.setString(11, Song.iso(s.addedAt));
     }
 
     public List<String> listCategories() throws SQLException {
-        connect();
-        List<String> cats = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            SELECT DISTINCT category FROM songs ORDER BY category
-        """)) {
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) cats.add(rs.getString(1));
-        }
-        return cats;
+        return run(c -> {
+            List<String> cats = new ArrayList<>();
+            try (ResultSet rs = c.ps("""
+                SELECT DISTINCT category FROM songs ORDER BY category
+            """).executeQuery()) {
+                while (rs.next()) cats.add(rs.getString(1));
+            }
+            return cats;
+        });
     }
 
+    // addedAt متن ISO با طول ثابت است، پس ترتیب متنی همان ترتیب زمانی است و اندیس
+    // (category, addedAt, id) بدون مرتب‌سازی جدا جواب می‌دهد
     public List<Map<String, Object>> listSongsByCategory(String category) throws SQLException {
-        connect();
-        List<Map<String,Object>> list = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            SELECT * FROM songs WHERE category=? ORDER BY datetime(addedAt) DESC
-        """)) {
+        return run(c -> {
+            List<Map<String,Object>> list = new ArrayList<>();
+            PreparedStatement ps = c.ps("""
+                SELECT * FROM songs WHERE category=? ORDER BY addedAt DESC, id DESC
+            """);
             ps.setString(1, category);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                Map<String,Object> m = new LinkedHashMap<>();
-                m.put("id", rs.getString("id"));
-                m.put("title", rs.getString("title"));
-                m.put("artist", rs.getString("artist"));
-                m.put("category", rs.getString("category"));
-                m.put("price", rs.getDouble("price"));
-                m.put("ratingAverage", rs.getDouble("ratingAverage"));
-                m.put("ratingCount", rs.getInt("ratingCount"));
-                m.put("downloads", rs.getInt("downloads"));
-                m.put("albumArtUrl", rs.getString("albumArtUrl"));
-                m.put("sourceUrl", rs.getString("sourceUrl"));
-                m.put("addedAt", rs.getString("addedAt"));
-                list.add(m);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) list.add(songRow(rs));
             }
-        }
-        return list;
+            return list;
+        });
     }
 
+    // صفحه‌بندی keyset: آهنگ‌های بعد از (afterAddedAt, afterId) در همان ترتیب؛ برای صفحه‌ی اول هر دو null.
+    // هزینه‌ی هر صفحه یک seek در اندیس است، هر قدر هم دسته بزرگ باشد.
+    public List<Map<String, Object>> listSongsByCategory(String category, String afterAddedAt, String afterId, int limit) throws SQLException {
+        return run(c -> {
+            List<Map<String,Object>> list = new ArrayList<>();
+            PreparedStatement ps;
+            if (afterAddedAt == null) {
+                ps = c.ps("""
+                    SELECT * FROM songs WHERE category=? ORDER BY addedAt DESC, id DESC LIMIT ?
+                """);
+                ps.setString(1, category);
+                ps.setInt(2, limit);
+            } else {
+                ps = c.ps("""
+                    SELECT * FROM songs WHERE category=? AND (addedAt, id) < (?, ?)
+                    ORDER BY addedAt DESC, id DESC LIMIT ?
+                """);
+                ps.setString(1, category);
+                ps.setString(2, afterAddedAt);
+                ps.setString(3, afterId);
+                ps.setInt(4, limit);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) list.add(songRow(rs));
+            }
+            return list;
+        });
+    }
+
+    // همه‌ی آهنگ‌ها به ترتیب درج (قدیمی‌ترین اول)
+    public List<Map<String, Object>> listSongs() throws SQLException {
+        return run(c -> {
+            List<Map<String,Object>> list = new ArrayList<>();
+            try (ResultSet rs = c.ps("SELECT * FROM songs ORDER BY rowid").executeQuery()) {
+                while (rs.next()) list.add(songRow(rs));
+            }
+            return list;
+        });
+    }
+
+    private static Map<String, Object> songRow(ResultSet rs) throws SQLException {
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("id", rs.getString("id"));
+        m.put("title", rs.getString("title"));
+        m.put("artist", rs.getString("artist"));
+        m.put("category", rs.getString("category"));
+        m.put("price", rs.getDouble("price"));
+        m.put("ratingAverage", rs.getDouble("ratingAverage"));
+        m.put("ratingCount", rs.getInt("ratingCount"));
+        m.put("downloads", rs.getInt("downloads"));
+        m.put("albumArtUrl", rs.getString("albumArtUrl"));
+        m.put("sourceUrl", rs.getString("sourceUrl"));
+        m.put("addedAt", rs.getString("addedAt"));
+        return m;
+    }
+
+    private static final String UPDATE_RATING = """
+        UPDATE songs SET ratingAverage=?, ratingCount=? WHERE id=?
+    """;
+
     public void updateSongRating(String songId, double ratingAverage, int ratingCount) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            UPDATE songs SET ratingAverage=?, ratingCount=? WHERE id=?
-        """)) {
+        run(c -> {
+            PreparedStatement ps = c.ps(UPDATE_RATING);
             ps.setDouble(1, ratingAverage);
             ps.setInt(2, ratingCount);
             ps.setString(3, songId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+    }
+
+    // songId -> {ratingAverage, ratingCount} نهایی
+    public void updateSongRatings(Map<String, double[]> ratings) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps(UPDATE_RATING);
+            for (Map.Entry<String, double[]> e : ratings.entrySet()) {
+                ps.setDouble(1, e.getValue()[0]);
+                ps.setInt(2, (int) e.getValue()[1]);
+                ps.setString(3, e.getKey());
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        }));
     }
 
     public void incrementDownloads(String songId) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            UPDATE songs SET downloads = downloads + 1 WHERE id=?
-        """)) {
+        run(c -> {
+            PreparedStatement ps = c.ps("""
+                UPDATE songs SET downloads = downloads + 1 WHERE id=?
+            """);
             ps.setString(1, songId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+    }
+
+    public void setSongDownloads(String songId, int downloads) throws SQLException {
+        setSongDownloads(Map.of(songId, downloads));
+    }
+
+    // songId -> تعداد نهایی دانلودها
+    public void setSongDownloads(Map<String, Integer> downloads) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps("""
+                UPDATE songs SET downloads=? WHERE id=?
+            """);
+            for (Map.Entry<String, Integer> e : downloads.entrySet()) {
+                ps.setInt(1, e.getValue());
+                ps.setString(2, e.getKey());
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        }));
     }
 
     // ---------- COMMENTS ----------
-    public void insertComment(Comment c) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            INSERT INTO comments(id, songId, user, text, likes, dislikes, createdAt)
-            VALUES(?,?,?,?,?,?,?)
-        """)) {
-            ps.setString(1, c.id);
-            ps.setString(2, c.songId);
-            ps.setString(3, c.user);
-            ps.setString(4, c.text);
-            ps.setInt(5, c.likes);
-            ps.setInt(6, c.dislikes);
-            ps.setString(7, Song.iso(c.createdAt));
-            ps.executeUpdate();
-        }
+    private static final String INSERT_COMMENT = """
+        INSERT INTO comments(id, songId, user, text, likes, dislikes, createdAt)
+        VALUES(?,?,?,?,?,?,?)
+    """;
+
+    public void insertComment(Comment cm) throws SQLException {
+        run(c -> {
+            PreparedStatement ps = c.ps(INSERT_COMMENT);
+            bindComment(ps, cm);
+            return ps.executeUpdate();
+        });
+    }
+
+    public void insertComments(Collection<Comment> comments) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps(INSERT_COMMENT);
+            for (Comment cm : comments) { bindComment(ps, cm); ps.addBatch(); }
+            return ps.executeBatch();
+        }));
+    }
+
+    public void upsertComments(Collection<Comment> comments) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps("""
+                INSERT INTO comments(id, songId, user, text, likes, dislikes, createdAt)
+                VALUES(?,?,?,?,?,?,?)
+                ON CONFLICT(id) DO UPDATE SET songId=excluded.songId, user=excluded.user, text=excluded.text,
+                    likes=excluded.likes, dislikes=excluded.dislikes
+            """);
+            for (Comment cm : comments) { bindComment(ps, cm); ps.addBatch(); }
+            return ps.executeBatch();
+        }));
+    }
+
+    private static void bindComment(PreparedStatement ps, Comment cm) throws SQLException {
+        ps.setString(1, cm.id);
+        ps.setString(2, cm.songId);
+        ps.setString(3, cm.user);
+        ps.setString(4, cm.text);
+        long v = cm.votes();
+        ps.setInt(5, Comment.likes(v));
+        ps.setInt(6, Comment.dislikes(v));
+        ps.setString(7, Song.iso(cm.createdAt));
     }
 
     public List<Map<String, Object>> listCommentsBySong(String songId) throws SQLException {
-        connect();
-        List<Map<String,Object>> list = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement("""
-            SELECT * FROM comments WHERE songId=? ORDER BY datetime(createdAt) DESC
-        """)) {
+        return run(c -> {
+            List<Map<String,Object>> list = new ArrayList<>();
+            PreparedStatement ps = c.ps("""
+                SELECT * FROM comments WHERE songId=? ORDER BY datetime(createdAt) DESC
+            """);
             ps.setString(1, songId);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                Map<String,Object> m = new LinkedHashMap<>();
-                m.put("id", rs.getString("id"));
-                m.put("songId", rs.getString("songId"));
-                m.put("user", rs.getString("user"));
-                m.put("text", rs.getString("text"));
-                m.put("likes", rs.getInt("likes"));
-                m.put("dislikes", rs.getInt("dislikes"));
-                m.put("createdAt", rs.getString("createdAt"));
-                list.add(m);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) list.add(commentRow(rs));
             }
-        }
-        return list;
+            return list;
+        });
+    }
+
+    // صفحه‌ای از نظرهای آهنگ، جدیدترین اول و با rowid کمتر از before؛ هر ردیف seq (همان rowid) را هم دارد.
+    // اندیس (songId) به rowid ختم می‌شود، پس این هم یک seek است بدون مرتب‌سازی
+    public List<Map<String, Object>> listCommentsBySong(String songId, long before, int limit) throws SQLException {
+        return run(c -> {
+            List<Map<String,Object>> list = new ArrayList<>();
+            PreparedStatement ps = c.ps("""
+                SELECT rowid AS seq, * FROM comments WHERE songId=? AND rowid < ? ORDER BY rowid DESC LIMIT ?
+            """);
+            ps.setString(1, songId);
+            ps.setLong(2, before);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Map<String,Object> m = commentRow(rs);
+                    m.put("seq", rs.getLong("seq"));
+                    list.add(m);
+                }
+            }
+            return list;
+        });
+    }
+
+    // همه‌ی نظرها به ترتیب درج
+    public List<Map<String, Object>> listComments() throws SQLException {
+        return run(c -> {
+            List<Map<String,Object>> list = new ArrayList<>();
+            try (ResultSet rs = c.ps("SELECT * FROM comments ORDER BY rowid").executeQuery()) {
+                while (rs.next()) list.add(commentRow(rs));
+            }
+            return list;
+        });
+    }
+
+    private static Map<String, Object> commentRow(ResultSet rs) throws SQLException {
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("id", rs.getString("id"));
+        m.put("songId", rs.getString("songId"));
+        m.put("user", rs.getString("user"));
+        m.put("text", rs.getString("text"));
+        m.put("likes", rs.getInt("likes"));
+        m.put("dislikes", rs.getInt("dislikes"));
+        m.put("createdAt", rs.getString("createdAt"));
+        return m;
     }
 
     public void updateCommentVotes(String commentId, boolean up) throws SQLException {
-        connect();
-        try (PreparedStatement ps = conn.prepareStatement(
-                up ? "UPDATE comments SET likes=likes+1 WHERE id=?"
-                        : "UPDATE comments SET dislikes=dislikes+1 WHERE id=?"
-        )) {
+        run(c -> {
+            PreparedStatement ps = c.ps(
+                    up ? "UPDATE comments SET likes=likes+1 WHERE id=?"
+                            : "UPDATE comments SET dislikes=dislikes+1 WHERE id=?"
+            );
             ps.setString(1, commentId);
-            ps.executeUpdate();
-        }
+            return ps.executeUpdate();
+        });
+    }
+
+    public void setCommentVotes(String commentId, int likes, int dislikes) throws SQLException {
+        applyVotes(Map.of(commentId, new int[]{likes, dislikes}));
+    }
+
+    // commentId -> {likes, dislikes} نهایی
+    public void applyVotes(Map<String, int[]> votes) throws SQLException {
+        transaction(() -> run(c -> {
+            PreparedStatement ps = c.ps("""
+                UPDATE comments SET likes=?, dislikes=? WHERE id=?
+            """);
+            for (Map.Entry<String, int[]> e : votes.entrySet()) {
+                ps.setInt(1, e.getValue()[0]);
+                ps.setInt(2, e.getValue()[1]);
+                ps.setString(3, e.getKey());
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        }));
     }
 
     // ---------- UTILS ----------
+    public interface Work {
+        void run() throws SQLException;
+    }
+
+    // همه یا هیچ؛ یک commit (و یک fsync) برای کل کار. نوشتن‌های داخل work از همین thread روی همین
+    // اتصال انجام می‌شوند (lock بازگشتی است)؛ تراکنش تودرتو بخشی از تراکنش بیرونی است.
+    public void transaction(Work work) throws SQLException {
+        run(c -> {
+            if (!c.conn.getAutoCommit()) {
+                work.run();
+                return null;
+            }
+            c.conn.setAutoCommit(false);
+            try {
+                work.run();
+                c.conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                c.conn.rollback();
+                throw e;
+            } finally {
+                c.conn.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    public void deleteAll() throws SQLException {
+        run(c -> {
+            try (Statement st = c.conn.createStatement()) {
+                st.execute("DELETE FROM comments");
+                st.execute("DELETE FROM purchases");
+                st.execute("DELETE FROM tokens");
+                st.execute("DELETE FROM songs");
+                st.execute("DELETE FROM users");
+            }
+            return null;
+        });
+    }
+
     public boolean hasAnySongs() throws SQLException {
-        connect();
-        try (Statement st = conn.createStatement()) {
-            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM songs");
-            return rs.next() && rs.getInt(1) > 0;
-        }
+        return run(c -> {
+            try (ResultSet rs = c.ps("SELECT COUNT(*) FROM songs").executeQuery()) {
+                return rs.next() && rs.getInt(1) > 0;
+            }
+        });
     }
 
     @Override
-    public void close() {
-        try { if (conn != null) conn.close(); } catch (Exception ignored) {}
+    public synchronized void close() {
+        lock.lock();
+        try {
+            if (conn == null) return;
+            conn.close();
+            conn = null;
+        } finally {
+            lock.unlock();
+        }
     }
 }
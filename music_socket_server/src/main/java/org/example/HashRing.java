@@ -0,0 +1,75 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// ====== حلقه‌ی consistent hashing (ShardRouter) ======
+// هر گره vnodes نقطه روی حلقه‌ی 64 بیتی دارد (hash نام "host:port#i") و مالک هر کلید (id آهنگ) اولین نقطه‌ی
+// بعد از hash آن است. حلقه تغییرناپذیر است و with(...) حلقه‌ی تازه می‌سازد؛ با افزودن یک گره فقط کلیدهایی
+// که مالک تازه‌شان همان گره است جابه‌جا می‌شوند (حدود 1/n کل) و مالک بقیه عوض نمی‌شود.
+final class HashRing<N> {
+    private final int vnodes;
+    private final Map<String, N> nodes; // به ترتیب عضویت
+    private final TreeMap<Long, N> points;
+
+    HashRing(int vnodes) {
+        this(vnodes, new LinkedHashMap<>(), new TreeMap<>());
+    }
+
+    private HashRing(int vnodes, Map<String, N> nodes, TreeMap<Long, N> points) {
+        this.vnodes = vnodes;
+        this.nodes = nodes;
+        this.points = points;
+    }
+
+    HashRing<N> with(String name, N node) {
+        if (nodes.containsKey(name)) throw new IllegalArgumentException("already in the ring: " + name);
+        Map<String, N> n = new LinkedHashMap<>(nodes);
+        n.put(name, node);
+        TreeMap<Long, N> p = new TreeMap<>(points);
+        for (int i = 0; i < vnodes; i++) p.putIfAbsent(hash(name + "#" + i), node);
+        return new HashRing<>(vnodes, n, p);
+    }
+
+    N owner(String key) {
+        if (points.isEmpty()) throw new IllegalStateException("empty ring");
+        Map.Entry<Long, N> e = points.ceilingEntry(hash(key));
+        return (e != null ? e : points.firstEntry()).getValue();
+    }
+
+    List<N> nodes() { return List.copyOf(nodes.values()); }
+
+    boolean contains(String name) { return nodes.containsKey(name); }
+
+    // سهم گره از فضای hash (بین 0 و 1)
+    double share(N node) {
+        double owned = 0;
+        long prev = points.isEmpty() ? 0 : points.lastKey();
+        for (Map.Entry<Long, N> e : points.entrySet()) {
+            long arc = e.getKey() - prev; // پیمانه‌ی 2^64
+            if (e.getValue() == node) owned += unsigned(arc == 0 && points.size() == 1 ? -1 : arc);
+            prev = e.getKey();
+        }
+        return owned / 0x1p64;
+    }
+
+    private static double unsigned(long v) {
+        return (v >>> 1) * 2.0 + (v & 1);
+    }
+
+    // 8 بایت اول MD5؛ بین JVM ها یکسان است، پس router دوباره‌راه‌اندازی‌شده همان حلقه را می‌سازد
+    static long hash(String key) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] d = md.digest(key.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xFF);
+        return h;
+    }
+}
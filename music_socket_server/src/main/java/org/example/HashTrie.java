@@ -0,0 +1,267 @@
+package org.example;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+// ====== map تغییرناپذیر با اشتراک ساختار (HAMT) ======
+// trie 32 شاخه روی hashCode کلید: هر گره یک bitmap از شاخه‌های موجود و آرایه‌ی فشرده‌ی جفت‌ها دارد که هر جفت
+// یا (کلید، مقدار) است یا (null، زیرگره). plus/minus فقط مسیر ریشه تا برگ را کپی می‌کنند (حداکثر 7 گره)، پس
+// هر نسخه‌ی Catalog با نسخه‌ی قبل تقریباً همه‌چیز را شریک است و نوشتن O(log32 n) است نه O(n). کلیدهایی که
+// hash کاملاً یکسان دارند در گره‌ی collision ته trie کنار هم می‌نشینند. of(...) برای ساختن یکجا (Builder) گره‌های
+// تازه‌ی خودش را در جا تغییر می‌دهد. مقدار null پذیرفته نمی‌شود.
+final class HashTrie<K, V> extends AbstractMap<K, V> {
+    private static final HashTrie<?, ?> EMPTY = new HashTrie<>(null, 0);
+    private static final int MAX_SHIFT = 30;
+
+    private final Node root;
+    private final int size;
+
+    private HashTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrie<K, V> empty() { return (HashTrie<K, V>) EMPTY; }
+
+    static <K, V> HashTrie<K, V> of(Map<K, V> m) {
+        Object edit = new Object();
+        Node r = Bitmap.EMPTY;
+        boolean[] added = new boolean[1];
+        for (Map.Entry<K, V> e : m.entrySet()) r = r.put(edit, 0, e.getKey().hashCode(), e.getKey(), Objects.requireNonNull(e.getValue()), added);
+        return new HashTrie<>(r, m.size());
+    }
+
+    HashTrie<K, V> plus(K key, V value) {
+        Objects.requireNonNull(value);
+        boolean[] added = new boolean[1];
+        Node r = (root == null ? Bitmap.EMPTY : root).put(null, 0, key.hashCode(), key, value, added);
+        return r == root ? this : new HashTrie<>(r, added[0] ? size + 1 : size);
+    }
+
+    HashTrie<K, V> minus(Object key) {
+        if (root == null) return this;
+        Node r = root.remove(0, key.hashCode(), key);
+        return r == root ? this : new HashTrie<>(r, size - 1);
+    }
+
+    @Override public int size() { return size; }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return root == null || key == null ? null : (V) root.find(0, key.hashCode(), key);
+    }
+
+    @Override public boolean containsKey(Object key) { return get(key) != null; }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override public int size() { return size; }
+            @Override public Iterator<Entry<K, V>> iterator() { return new Iter(); }
+        };
+    }
+
+    // پیمایش عمقی با پشته‌ی آرایه‌ها؛ عمق trie حداکثر 7 گره‌ی bitmap و یک گره‌ی collision است
+    private final class Iter implements Iterator<Entry<K, V>> {
+        private final Object[][] stack = new Object[MAX_SHIFT / 5 + 2][];
+        private final int[] pos = new int[stack.length];
+        private int depth = -1;
+        private Entry<K, V> next;
+
+        Iter() {
+            if (root != null) stack[++depth] = root.array;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] a = stack[depth];
+                int i = pos[depth];
+                if (i >= a.length) { pos[depth--] = 0; continue; }
+                pos[depth] = i + 2;
+                if (a[i] == null) stack[++depth] = ((Node) a[i + 1]).array;
+                else { next = new SimpleImmutableEntry<>((K) a[i], (V) a[i + 1]); return; }
+            }
+        }
+
+        @Override public boolean hasNext() { return next != null; }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<K, V> e = next;
+            advance();
+            return e;
+        }
+    }
+
+    // ---------- گره‌ها ----------
+    private abstract static sealed class Node permits Bitmap, Collision {
+        final Object edit; // فقط of(...) با همین شیء اجازه‌ی تغییر در جا دارد
+        Object[] array;
+
+        Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added);
+        abstract Node remove(int shift, int hash, Object key); // null یعنی گره خالی شد
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) ((Node) array[i + 1]).forEach(action);
+                else action.accept(array[i], array[i + 1]);
+            }
+        }
+
+        boolean editable(Object edit) { return edit != null && this.edit == edit; }
+    }
+
+    private static final class Bitmap extends Node {
+        static final Bitmap EMPTY = new Bitmap(null, 0, new Object[0]);
+        int bitmap;
+
+        Bitmap(Object edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, i);
+                a[i] = key;
+                a[i + 1] = value;
+                System.arraycopy(array, i, a, i + 2, array.length - i);
+                if (editable(edit)) {
+                    bitmap |= bit;
+                    array = a;
+                    return this;
+                }
+                return new Bitmap(edit, bitmap | bit, a);
+            }
+            Object k = array[i], v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(edit, shift + 5, hash, key, value, added);
+                return child == v ? this : with(edit, i, null, child);
+            }
+            if (key.equals(k)) return v == value ? this : with(edit, i, k, value);
+            added[0] = true;
+            return with(edit, i, null, pair(edit, shift + 5, k, v, hash, key, value));
+        }
+
+        private Node with(Object edit, int i, Object key, Object value) {
+            if (editable(edit)) {
+                array[i] = key;
+                array[i + 1] = value;
+                return this;
+            }
+            Object[] a = array.clone();
+            a[i] = key;
+            a[i + 1] = value;
+            return new Bitmap(edit, bitmap, a);
+        }
+
+        private static Node pair(Object edit, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = k1.hashCode();
+            if (shift > MAX_SHIFT) return new Collision(edit, new Object[]{k1, v1, k2, v2});
+            boolean[] ignored = new boolean[1];
+            return EMPTY.put(edit, shift, h1, k1, v1, ignored).put(edit, shift, h2, k2, v2, ignored);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node n = child.remove(shift + 5, hash, key);
+                if (n == child) return this;
+                if (n != null) return with(null, i, null, n);
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new Bitmap(null, bitmap & ~bit, a);
+        }
+    }
+
+    // کلیدهای با hash یکسان؛ جستجوی خطی
+    private static final class Collision extends Node {
+        Collision(Object edit, Object[] array) { super(edit, array); }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) if (key.equals(array[i])) return i;
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            int i = indexOf(key);
+            Object[] a;
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                a = array.clone();
+                a[i + 1] = value;
+            } else {
+                added[0] = true;
+                a = Arrays.copyOf(array, array.length + 2);
+                a[array.length] = key;
+                a[array.length + 1] = value;
+            }
+            if (editable(edit)) {
+                array = a;
+                return this;
+            }
+            return new Collision(edit, a);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new Collision(null, a);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+// ====== پروتکل متنی (پیش‌فرض): یک شیء JSON در هر خط ======
+// خواندن درخواست‌ها در Requests است؛ اینجا فقط نوشتن پاسخ و رویداد
+final class JsonCodec {
+    static final Type MAP = new TypeToken<Map<String,Object>>() {}.getType();
+
+    // Song/Comment/User در نتیجه‌ها همان نمای toMap() را می‌گیرند؛ Song از fragment کش‌شده‌ی خودش
+    // (و برعکس با fromMap خوانده می‌شود)
+    static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Song.class, new TypeAdapter<Song>() {
+                @Override public void write(JsonWriter out, Song s) throws IOException {
+                    out.jsonValue(new String(s.json(), StandardCharsets.UTF_8));
+                }
+                @Override public Song read(JsonReader in) {
+                    return Song.fromMap(GSON.fromJson(in, MAP));
+                }
+            }.nullSafe())
+            .registerTypeAdapter(Comment.class, (JsonSerializer<Comment>) (c, t, ctx) -> ctx.serialize(c.toMap()))
+            .registerTypeAdapter(User.class, (JsonSerializer<User>) (u, t, ctx) -> ctx.serialize(u.toMap()))
+            .create();
+
+    // داخل result مقدار null هم نوشته می‌شود تا مثلاً "next": null در صفحه‌ی آخر حذف نشود
+    private static final Gson RESULT = GSON.newBuilder().serializeNulls().create();
+
+    private JsonCodec() {}
+
+    static byte[] encode(Response r) {
+        if (r.ok() && r.result() instanceof List<?> l && allSongs(l)) return songs(r.reqId(), l);
+        StringWriter out = new StringWriter();
+        try (JsonWriter w = GSON.newJsonWriter(out)) {
+            w.beginObject();
+            if (r.reqId() != null) w.name("reqId").value(r.reqId());
+            w.name("ok").value(r.ok());
+            if (!r.ok()) w.name("error").value(r.error());
+            else if (r.result() != null) RESULT.toJson(r.result(), r.result().getClass(), w.name("result"));
+            w.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (out + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] event(Map<String,Object> event) {
+        return line(event);
+    }
+
+    private static boolean allSongs(List<?> l) {
+        for (Object o : l) if (!(o instanceof Song)) return false;
+        return true;
+    }
+
+    // پاسخ songs: سرآیند + fragment های آماده با کاما، بدون عبور دوباره‌ی Gson از آهنگ‌ها
+    private static byte[] songs(String reqId, List<?> songs) {
+        // مثل Gson: reqId خالی نوشته نمی‌شود
+        String prefix = reqId == null ? "{" : "{\"reqId\":" + GSON.toJson(reqId) + ",";
+        byte[] head = (prefix + "\"ok\":true,\"result\":[").getBytes(StandardCharsets.UTF_8);
+        byte[][] parts = new byte[songs.size()][];
+        int len = head.length + 3 + Math.max(0, parts.length - 1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = ((Song) songs.get(i)).json();
+            len += parts[i].length;
+        }
+        byte[] out = new byte[len];
+        System.arraycopy(head, 0, out, 0, head.length);
+        int pos = head.length;
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) out[pos++] = ',';
+            System.arraycopy(parts[i], 0, out, pos, parts[i].length);
+            pos += parts[i].length;
+        }
+        out[pos++] = ']';
+        out[pos++] = '}';
+        out[pos] = '\n';
+        return out;
+    }
+
+    private static byte[] line(Object o) {
+        return (GSON.toJson(o) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
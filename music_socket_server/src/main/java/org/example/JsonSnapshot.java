@@ -0,0 +1,97 @@
+package org.example;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+// ====== snapshot JSON جریانی ======
+// همان قالب همیشگی server-data.json: {"version", "users": [...], "songs": [...], "comments": [...], "journalSeq"}
+// ولی بدون ساختن کل سند در حافظه. نوشتن موجودیت به موجودیت از نسخه‌ی منتشرشده‌ی Catalog به JsonWriter می‌رود
+// و خواندن هر عنصر آرایه را جدا decode و بلافاصله به موجودیت تبدیل می‌کند؛ پس حافظه‌ی اضافه به اندازه‌ی یک
+// موجودیت است نه چند برابر کل داده. تبدیل هر موجودیت همان toJson/toMap و fromJson/fromMap است.
+final class JsonSnapshot {
+    private static final Gson GSON = new Gson();
+
+    private JsonSnapshot() {}
+
+    // مثل BinarySnapshot.write: هر بخش می‌تواند خالی باشد و songs به ترتیب Catalog.songsOldestFirst است
+    static void write(long version, long journalSeq, Collection<User> users, List<Song> songs, List<Comment> comments,
+                      File file) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            JsonWriter w = new JsonWriter(new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16));
+            write(version, journalSeq, users, songs, comments, w);
+            w.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    // یک سند JSON در یک خط (Replication هم همین را روی سوکت می‌فرستد)
+    static void write(long version, long journalSeq, Collection<User> users, List<Song> songs, List<Comment> comments,
+                      JsonWriter w) throws IOException {
+        w.beginObject();
+        w.name("version").value(version);
+        w.name("users").beginArray();
+        for (User u : users) GSON.toJson(u.toJson(), Map.class, w);
+        w.endArray();
+        w.name("songs").beginArray();
+        for (Song s : songs) GSON.toJson(s.toMap(), Map.class, w);
+        w.endArray();
+        w.name("comments").beginArray();
+        for (Comment cm : comments) GSON.toJson(cm.toMap(), Map.class, w);
+        w.endArray();
+        w.name("journalSeq").value(journalSeq);
+        w.endObject();
+    }
+
+    // journalSeq فایل‌های قدیمی بدون آن 0 است؛ کلیدها به هر ترتیبی می‌توانند باشند و کلید ناشناخته نادیده
+    // گرفته می‌شود. JSON فقط ترتیبی خوانده می‌شود؛ موازی‌سازی بین فایل‌های segment است (Persister).
+    static Catalog.Part read(Path file) throws IOException {
+        try (JsonReader r = new JsonReader(new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 16))) {
+            Catalog.Part part = read(r);
+            if (r.peek() != JsonToken.END_DOCUMENT) throw new IOException("trailing data after snapshot");
+            return part;
+        }
+    }
+
+    // فقط همین یک سند؛ بعد از آن می‌تواند مقدارهای دیگری در همان جریان بیاید (Replication)
+    @SuppressWarnings("unchecked")
+    static Catalog.Part read(JsonReader r) throws IOException {
+        long version = 0, journalSeq = 0;
+        List<User> users = new ArrayList<>();
+        List<Song> songs = new ArrayList<>();
+        List<Comment> comments = new ArrayList<>();
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "version" -> version = r.nextLong();
+                case "journalSeq" -> journalSeq = r.nextLong();
+                case "users" -> {
+                    r.beginArray();
+                    while (r.hasNext()) users.add(User.fromJson(GSON.fromJson(r, Map.class)));
+                    r.endArray();
+                }
+                case "songs" -> {
+                    r.beginArray();
+                    while (r.hasNext()) songs.add(Song.fromMap(GSON.fromJson(r, Map.class)));
+                    r.endArray();
+                }
+                case "comments" -> {
+                    r.beginArray();
+                    while (r.hasNext()) comments.add(Comment.fromMap(GSON.fromJson(r, Map.class)));
+                    r.endArray();
+                }
+                default -> r.skipValue();
+            }
+        }
+        r.endObject();
+        return new Catalog.Part(version, journalSeq, users, songs, comments);
+    }
+}
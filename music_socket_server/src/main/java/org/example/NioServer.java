@@ -0,0 +1,291 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+// ====== سرور غیرمسدود: یک acceptor و N تا reactor ======
+// هر اتصال فقط یک SocketChannel و یک Connection کوچک است؛ بافر خواندن بین اتصال‌های یک reactor مشترک است
+// تا اتصال‌های بیکار تقریباً حافظه‌ای مصرف نکنند.
+class NioServer {
+    static final int MAX_LINE = 1 << 20;
+
+    private final ServerState state;
+    private final int port;
+    private final Reactor[] reactors;
+    private final Executor workers;
+
+    NioServer(ServerState state, int port, int reactorCount, Executor workers) {
+        this.state = state;
+        this.port = port;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        this.workers = workers;
+    }
+
+    void serve() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(state, i, workers);
+            reactors[i].start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Socket server (nio, " + reactors.length + " reactors) listening on port " + port + " ...");
+            int next = 0;
+            while (true) {
+                SocketChannel ch = server.accept();
+                try {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                    reactors[next].register(ch);
+                    next = (next + 1) % reactors.length;
+                } catch (IOException e) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+    }
+
+    static final class Reactor extends Thread {
+        private final ServerState state;
+        private final Selector selector;
+        private final ActionHandler actions;
+        private final Executor workers;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+
+        Reactor(ServerState state, int index, Executor workers) throws IOException {
+            super("nio-reactor-" + index);
+            setDaemon(true);
+            this.state = state;
+            this.selector = Selector.open();
+            this.actions = new ActionHandler(state);
+            this.workers = workers;
+        }
+
+        void register(SocketChannel ch) {
+            execute(() -> {
+                try {
+                    Connection c = new Connection(this, ch);
+                    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                    state.connections.incrementAndGet();
+                } catch (IOException e) {
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        void execute(Runnable r) {
+            tasks.add(r);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable r;
+                    while ((r = tasks.poll()) != null) r.run();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) onReadable(c);
+                            if (key.isValid() && key.isWritable()) c.flush();
+                        } catch (IOException | CancelledKeyException e) {
+                            c.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void onReadable(Connection c) throws IOException {
+            while (true) {
+                readBuf.clear();
+                int n = c.ch.read(readBuf);
+                if (n < 0) { c.endOfInput(); return; }
+                if (n == 0) return;
+                readBuf.flip();
+                if (!c.frame(readBuf)) {
+                    // تا خالی شدن جا در pipeline دیگر از این اتصال نمی‌خوانیم
+                    c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                if (n < readBuf.capacity()) return;
+            }
+        }
+    }
+
+    // وضعیت یک اتصال: پروتکل، تکه‌ی ناقص ورودی و صف خروجی
+    static final class Connection implements ClientSink {
+        private static final int UNKNOWN = 0, JSON = 1, BINARY = 2;
+
+        final Reactor reactor;
+        final SocketChannel ch;
+        SelectionKey key;
+        private byte[] partial = new byte[0];
+        private int partialLen = 0;
+        private volatile int protocol = UNKNOWN;
+        private boolean handshaken = false;
+        private final Outbox outbox;
+        private ByteBuffer writing; // frame نیمه‌نوشته؛ فقط روی thread خودِ reactor
+        private volatile boolean closed = false;
+        private volatile boolean eof = false;
+        private final RequestPipeline pipeline;
+
+        Connection(Reactor reactor, SocketChannel ch) {
+            this.reactor = reactor;
+            this.ch = ch;
+            this.outbox = new Outbox(reactor.state.outboxCapacity, reactor.state.slowConsumer, () -> {
+                if (Thread.currentThread() == reactor) safeFlush();
+                else reactor.execute(this::safeFlush);
+            });
+            this.pipeline = new RequestPipeline(reactor.actions, reactor.workers, this, () -> reactor.execute(() -> {
+                if (key.isValid() && !eof) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }), () -> {
+                if (eof) reactor.execute(this::closeIfDone);
+            });
+        }
+
+        // ورودی را به درخواست‌ها تبدیل و به pipeline می‌دهد؛ false یعنی pipeline پر است
+        boolean frame(ByteBuffer buf) throws IOException {
+            if (protocol == UNKNOWN) {
+                if (buf.get(buf.position()) == BinaryCodec.MAGIC[0]) {
+                    protocol = BINARY;
+                } else {
+                    protocol = JSON;
+                    reactor.state.addClient(this);
+                }
+            }
+            return protocol == JSON ? frameLines(buf) : frameBinary(buf);
+        }
+
+        // خطوط کامل (جداشده با \n)
+        private boolean frameLines(ByteBuffer buf) throws IOException {
+            boolean accepting = true;
+            while (buf.hasRemaining()) {
+                int start = buf.position(), end = -1;
+                for (int i = start; i < buf.limit(); i++) {
+                    if (buf.get(i) == '\n') { end = i; break; }
+                }
+                if (end < 0) { append(buf, buf.remaining(), MAX_LINE); return accepting; }
+                append(buf, end - start, MAX_LINE);
+                buf.get(); // '\n'
+                String line = new String(partial, 0, partialLen, StandardCharsets.UTF_8);
+                partialLen = 0;
+                if (partial.length > 4096) partial = new byte[0];
+                Request r;
+                try { r = Requests.parse(line); } catch (Exception ex) { continue; } // خط خراب بدون reqId پاسخی ندارد
+                accepting = pipeline.submit(r);
+            }
+            return accepting;
+        }
+
+        // دست‌دهی MAGIC و سپس frame های [طول][payload]
+        private boolean frameBinary(ByteBuffer buf) throws IOException {
+            boolean accepting = true;
+            while (buf.hasRemaining()) {
+                append(buf, Math.min(buf.remaining(), 16 * 1024), BinaryCodec.MAX_FRAME + 4 + 16 * 1024);
+                int pos = 0;
+                if (!handshaken) {
+                    if (partialLen < BinaryCodec.MAGIC.length) continue;
+                    if (!Arrays.equals(partial, 0, BinaryCodec.MAGIC.length, BinaryCodec.MAGIC, 0, BinaryCodec.MAGIC.length)) {
+                        throw new IOException("bad handshake");
+                    }
+                    handshaken = true;
+                    pos = BinaryCodec.MAGIC.length;
+                    outbox.response(BinaryCodec.MAGIC.clone());
+                    reactor.state.addClient(this);
+                }
+                while (partialLen - pos >= 4) {
+                    int len = ((partial[pos] & 0xFF) << 24) | ((partial[pos + 1] & 0xFF) << 16)
+                            | ((partial[pos + 2] & 0xFF) << 8) | (partial[pos + 3] & 0xFF);
+                    if (len < 1 || len > BinaryCodec.MAX_FRAME) throw new IOException("bad frame length: " + len);
+                    if (partialLen - pos - 4 < len) break;
+                    try {
+                        accepting = pipeline.submit(BinaryCodec.decodeRequest(partial, pos + 4, len));
+                    } catch (RuntimeException ignored) {
+                    }
+                    pos += 4 + len;
+                }
+                System.arraycopy(partial, pos, partial, 0, partialLen - pos);
+                partialLen -= pos;
+            }
+            if (partialLen == 0 && partial.length > 64 * 1024) partial = new byte[0];
+            return accepting;
+        }
+
+        private void append(ByteBuffer buf, int n, int limit) throws IOException {
+            if (partialLen + n > limit) throw new IOException("request too long");
+            if (partialLen + n > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partialLen + n, Math.max(256, partial.length * 2)));
+            }
+            buf.get(partial, partialLen, n);
+            partialLen += n;
+        }
+
+        @Override
+        public void send(Response r) {
+            outbox.response(protocol == BINARY ? BinaryCodec.encode(r) : JsonCodec.encode(r));
+        }
+
+        @Override
+        public void event(Broadcast b) {
+            if (!outbox.event(b.key, protocol == BINARY ? b.binary() : b.json())) reactor.execute(this::close);
+        }
+
+        // کلاینت نیمه‌بسته: بعد از تحویل پاسخ‌های در راه بسته می‌شود
+        void endOfInput() {
+            eof = true;
+            if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (eof && writing == null && pipeline.isIdle() && outbox.isEmpty()) close();
+        }
+
+        private void safeFlush() {
+            try { flush(); } catch (IOException | CancelledKeyException e) { close(); }
+        }
+
+        // فقط روی thread خودِ reactor صدا زده می‌شود
+        void flush() throws IOException {
+            if (closed) return;
+            while (true) {
+                if (writing == null) {
+                    byte[] b = outbox.poll();
+                    if (b == null) break;
+                    writing = ByteBuffer.wrap(b);
+                }
+                ch.write(writing);
+                if (writing.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            reactor.state.removeClient(this);
+            reactor.state.connections.decrementAndGet();
+            outbox.close();
+            if (key != null) key.cancel();
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+}
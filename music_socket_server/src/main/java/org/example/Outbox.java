@@ -0,0 +1,134 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ====== صف خروجی یک کلاینت ======
+// پاسخ‌ها همیشه وارد صف می‌شوند (تعدادشان را RequestPipeline محدود می‌کند)؛ رویدادهای broadcast
+// حداکثر capacity تا در صف می‌مانند و بعد از آن سیاست slow-consumer اعمال می‌شود.
+// فرستنده هیچ‌وقت روی سوکت منتظر نمی‌ماند؛ نوشتن کار writer خودِ اتصال است.
+class Outbox {
+    enum Policy {
+        DROP_OLDEST, // قدیمی‌ترین رویداد در صف دور ریخته می‌شود
+        // رویدادهای هم‌کلید (نوع و شناسه‌ی موجودیت، Broadcast.key) در صف با جدیدترین جایگزین می‌شوند. تنها رویداد
+        // فعلی new_release است و هر آهنگ یک بار منتشر می‌شود، پس فعلاً هم‌کلیدی پیدا نمی‌شود و رفتارش همان
+        // DROP_OLDEST است؛ برای رویدادهایی است که یک موجودیت را چند بار گزارش می‌کنند
+        COALESCE,
+        DISCONNECT;  // اتصال بسته می‌شود
+
+        static Policy parse(String s) {
+            return valueOf(s.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private record Entry(String key, byte[] bytes) {} // key == null یعنی پاسخ
+
+    private final int capacity;
+    private final Policy policy;
+    private final Runnable onReady; // وقتی صف از خالی به غیرخالی می‌رود (برای nio)
+    private final ArrayDeque<Entry> q = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int events = 0;
+    private boolean closed = false;
+    private boolean finished = false;
+    private long dropped = 0; // رویدادهای دورریخته؛ موقع بستن اتصال گزارش می‌شود
+
+    Outbox(int capacity, Policy policy, Runnable onReady) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.onReady = onReady;
+    }
+
+    void response(byte[] bytes) {
+        offer(null, bytes);
+    }
+
+    // false یعنی کلاینت طبق سیاست DISCONNECT باید بسته شود
+    boolean event(String key, byte[] bytes) {
+        return offer(Objects.requireNonNull(key), bytes);
+    }
+
+    private boolean offer(String key, byte[] bytes) {
+        boolean wasEmpty;
+        lock.lock();
+        try {
+            if (closed || finished) return true;
+            if (key != null && events >= capacity) {
+                if (policy == Policy.DISCONNECT) return false;
+                if (policy != Policy.COALESCE || !removeEvents(key)) removeEvents(null);
+            }
+            wasEmpty = q.isEmpty();
+            q.add(new Entry(key, bytes));
+            if (key != null) events++;
+            notEmpty.signal();
+        } finally { lock.unlock(); }
+        if (wasEmpty && onReady != null) onReady.run();
+        return true;
+    }
+
+    // key == null: فقط قدیمی‌ترین رویداد؛ در غیر این صورت همه‌ی رویدادهای هم‌کلید
+    private boolean removeEvents(String key) {
+        boolean removed = false;
+        for (Iterator<Entry> it = q.iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (e.key == null || (key != null && !key.equals(e.key))) continue;
+            it.remove();
+            events--;
+            dropped++;
+            removed = true;
+            if (key == null) break;
+        }
+        return removed;
+    }
+
+    byte[] poll() {
+        lock.lock();
+        try { return next(); } finally { lock.unlock(); }
+    }
+
+    // منتظر می‌ماند؛ null یعنی صف بسته شده
+    byte[] take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (q.isEmpty() && !closed && !finished) notEmpty.await();
+            return next();
+        } finally { lock.unlock(); }
+    }
+
+    private byte[] next() {
+        Entry e = q.poll();
+        if (e == null) return null;
+        if (e.key != null) events--;
+        return e.bytes;
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try { return q.isEmpty(); } finally { lock.unlock(); }
+    }
+
+    // چیز جدیدی پذیرفته نمی‌شود، ولی آنچه در صف است هنوز تحویل writer می‌شود
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally { lock.unlock(); }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            q.clear();
+            events = 0;
+            notEmpty.signalAll();
+            if (dropped > 0) System.out.println("slow consumer: dropped " + dropped + " events (" + policy.name().toLowerCase() + ")");
+        } finally { lock.unlock(); }
+    }
+}
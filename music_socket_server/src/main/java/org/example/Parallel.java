@@ -0,0 +1,68 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// ====== fork-join برای بارگذاری ======
+// فقط هنگام startup (snapshot و Catalog.Builder)؛ task ها در common pool اجرا می‌شوند و از main هم می‌شود
+// صدایشان زد. یک بازه‌ی اندیس (رکوردهای یک بخش snapshot) نصف می‌شود تا تکه‌ها به CHUNK برسند.
+final class Parallel {
+    static final int CHUNK = 16_384;
+
+    interface Chunk {
+        void run(int from, int to) throws Exception;
+    }
+
+    private Parallel() {}
+
+    // همه را اجرا و منتظر همه می‌ماند؛ خطای هر task (checked ها پیچیده در RuntimeException) دوباره پرتاب می‌شود
+    static void all(Collection<? extends ForkJoinTask<?>> tasks) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+            return;
+        }
+        for (ForkJoinTask<?> t : tasks) ForkJoinPool.commonPool().execute(t);
+        for (ForkJoinTask<?> t : tasks) t.join();
+    }
+
+    // [from, to) در تکه‌های حداکثر CHUNK تایی
+    static void range(int from, int to, Chunk body) {
+        all(List.of(new Range(from, to, body)));
+    }
+
+    // برای کنار task های دیگر در all(...)
+    static ForkJoinTask<?> task(int from, int to, Chunk body) {
+        return new Range(from, to, body);
+    }
+
+    private static final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final transient Chunk body;
+
+        Range(int from, int to, Chunk body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                try {
+                    body.run(from, to);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Range(from, mid, body), new Range(mid, to, body));
+        }
+    }
+}
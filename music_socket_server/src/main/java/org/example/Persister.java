@@ -0,0 +1,376 @@
+package org.example;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ====== ذخیره: snapshot + ژورنال فقط-افزودنی ======
+// هر تغییر یک خط JSON کوچک در ژورنال است (server-data.json.journal.<seq>) با مقدار نهایی فیلدها، نه اختلاف؛
+// پس اجرای دوباره‌ی یک ورودی بی‌ضرر است. خطوط در حافظه جمع می‌شوند و thread پس‌زمینه حداکثر هر interval
+// یک بار آن‌ها را یکجا می‌نویسد و fsync می‌کند (write-behind). درخواستِ sync تا نوشته شدن نسل خودش صبر می‌کند.
+// وقتی ژورنال از compactBytes بزرگ‌تر شد، به فایل seq بعدی می‌رویم، snapshot با journalSeq نوشته می‌شود
+// و ژورنال‌های قدیمی پاک می‌شوند. بارگذاری = snapshot + replay ژورنال‌های seq >= journalSeq.
+// snapshot چند segment است: users، songs و COMMENT_SHARDS تکه‌ی comments-NN (بر اساس hash شناسه‌ی آهنگ)،
+// هر کدام یک فایل BinarySnapshot (.snap) یا JsonSnapshot (.json) با همان یک بخش، مثل server-data.songs.12.snap.
+// فایل manifest (server-data.manifest) نسخه، journalSeq و فایل فعلی هر segment را دارد و با move اتمی عوض
+// می‌شود، پس تا manifest تازه نوشته نشده فایل‌های قبلی معتبرند. فقط segment هایی دوباره نوشته می‌شوند که
+// از آخرین snapshot تغییر کرده‌اند: Catalog ساختارهای تغییرنکرده را با نسخه‌ی قبل شریک است و مقایسه‌ی
+// ارجاع‌ها کافی است؛ پس یک موج نظر روی یک آهنگ فقط یک تکه‌ی comments و manifest را بازنویسی می‌کند.
+// رأی‌ها استثنا اند (شمارنده‌ی در جا)، پس تکه‌ی نظرهای رأی‌گرفته از روی ورودی‌های vote ژورنال علامت می‌خورد.
+// snapshot های تک‌فایلی قدیمی (server-data.snap یا خود server-data.json) هنوز بارگذاری و بعد جایگزین می‌شوند.
+// snapshot یک نسخه‌ی منتشرشده‌ی Catalog است و بدون قفل و بدون معطل کردن درخواست‌ها نوشته می‌شود.
+class Persister implements StorageEngine {
+    static final int COMMENT_SHARDS = 16;
+    private static final String USERS = "users", SONGS = "songs";
+
+    private final ServerState state;
+    private final String path, base;
+    private final File dir, snapFile, manifestFile;
+    private final boolean binary;
+    private final long intervalMs, compactBytes;
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("persister").daemon(true).factory());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    // زیر lock
+    private StringBuilder pending = new StringBuilder();
+    private long appended = 0, attempted = 0, saved = 0;
+    // تکه‌های comments که از آخرین snapshot رأی گرفته‌اند؛ رأی شمارنده را در جا عوض می‌کند و در مقایسه‌ی ارجاع‌ها دیده نمی‌شود
+    private Set<String> voted = new HashSet<>();
+    // فقط thread flusher (یا main پیش از start)
+    private long seq = 0;
+    private FileOutputStream journal;
+    private long journalBytes = 0;
+    private Map<String, String> segments = new TreeMap<>(); // نام segment -> نام فایل، همان manifest روی دیسک
+    private Catalog written; // نسخه‌ای که segments روی دیسک نگه می‌دارند؛ null یعنی همه باید نوشته شوند
+
+    Persister(ServerState state, String path, boolean binary, long intervalMs, long compactBytes) {
+        this.state = state;
+        this.path = path;
+        this.binary = binary;
+        this.base = path.endsWith(".json") ? path.substring(0, path.length() - 5) : path;
+        this.dir = new File(path).getAbsoluteFile().getParentFile();
+        this.snapFile = new File(base + ".snap");
+        this.manifestFile = new File(base + ".manifest");
+        this.intervalMs = intervalMs;
+        this.compactBytes = compactBytes;
+    }
+
+    @Override
+    public void start() {
+        flusher.scheduleWithFixedDelay(() -> {
+            flush();
+            if (journalBytes > compactBytes) {
+                try { compact(); } catch (IOException e) { e.printStackTrace(); }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // ترتیب ژورنال همان ترتیب نسخه‌هاست چون زیر قفل نویسنده صدا زده می‌شود
+    @Override
+    public void append(Map<String,Object> entry) {
+        String line = state.gson.toJson(entry);
+        lock.lock();
+        try {
+            pending.append(line).append('\n');
+            appended++;
+            if ("vote".equals(entry.get("op"))) voted.add(shard((String) entry.get("songId")));
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void sync() throws InterruptedException {
+        long gen;
+        lock.lock();
+        try {
+            gen = appended;
+            if (saved >= gen) return;
+        } finally { lock.unlock(); }
+        flusher.execute(this::flush);
+        lock.lock();
+        try {
+            while (attempted < gen) flushed.await();
+            if (saved < gen) throw new IllegalStateException("save failed");
+        } finally { lock.unlock(); }
+    }
+
+    private void flush() {
+        String batch;
+        long gen;
+        lock.lock();
+        try {
+            gen = appended;
+            if (gen == saved) return;
+            batch = pending.toString();
+            pending = new StringBuilder();
+        } finally { lock.unlock(); }
+        boolean ok = false;
+        try {
+            if (journal == null) openJournal(seq + 1);
+            byte[] b = batch.getBytes(StandardCharsets.UTF_8);
+            journal.write(b);
+            journal.getFD().sync();
+            journalBytes += b.length;
+            ok = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            discardPartialWrite();
+        }
+        lock.lock();
+        try {
+            attempted = gen;
+            if (ok) saved = gen;
+            else pending.insert(0, batch); // نوبت بعد دوباره، روی ژورنالی که خط نیمه‌نوشته‌ای در آن نمانده
+            flushed.signalAll();
+        } finally { lock.unlock(); }
+    }
+
+    // بخشی از دسته‌ی ناموفق ممکن است نوشته شده باشد؛ ژورنال به طول پیش از آن برمی‌گردد. اگر آن هم نشد فایل
+    // بسته می‌شود و نوشتن بعدی در seq تازه است، پس خط نیمه‌نوشته در بدترین حالت خط آخر یک ژورنال می‌ماند
+    private void discardPartialWrite() {
+        if (journal == null) return;
+        try {
+            journal.getChannel().truncate(journalBytes);
+        } catch (IOException e) {
+            try { journal.close(); } catch (IOException ignored) {}
+            journal = null;
+        }
+    }
+
+    // ژورنال فعلی بسته می‌شود و هر چه از این به بعد بیاید در seq بعدی است؛ snapshot هر چه در ژورنال‌های
+    // قبلی بوده را دارد و ورودی‌های هم‌زمانِ seq جدید دوباره روی آن replay می‌شوند.
+    // segment های تغییرنکرده همان محتوای نسخه‌ی c را دارند، پس manifest تازه فقط به فایل قبلی‌شان اشاره می‌کند.
+    void compact() throws IOException {
+        flush();
+        long next = seq + 1;
+        openJournal(next);
+        Catalog c = state.catalog;
+        Set<String> votes;
+        lock.lock();
+        try {
+            votes = voted;
+            voted = new HashSet<>();
+        } finally { lock.unlock(); }
+        try {
+            Set<String> dirty = dirty(c);
+            dirty.addAll(votes);
+            Map<String, List<Comment>> shards = new HashMap<>();
+            c.commentsBySong.forEach((songId, list) -> {
+                String name = shard(songId);
+                if (dirty.contains(name)) shards.computeIfAbsent(name, k -> new ArrayList<>()).addAll(list);
+            });
+            Map<String, String> files = new TreeMap<>(segments);
+            for (String name : dirty) {
+                Collection<User> users = name.equals(USERS) ? c.usersById.values() : List.of();
+                List<Song> songs = name.equals(SONGS) ? c.songsOldestFirst() : List.of();
+                List<Comment> comments = shards.getOrDefault(name, List.of());
+                if (users.isEmpty() && songs.isEmpty() && comments.isEmpty()) {
+                    files.remove(name);
+                    continue;
+                }
+                String file = new File(base).getName() + "." + name + "." + next + (binary ? ".snap" : ".json");
+                if (binary) BinarySnapshot.write(c.version, next, users, songs, comments, new File(dir, file));
+                else JsonSnapshot.write(c.version, next, users, songs, comments, new File(dir, file));
+                files.put(name, file);
+            }
+
+            Map<String, Object> manifest = new LinkedHashMap<>();
+            manifest.put("version", c.version);
+            manifest.put("journalSeq", next);
+            manifest.put("segments", files);
+            File tmp = new File(base + ".manifest.tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(state.gson.toJson(manifest).getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            segments = files;
+            written = c;
+
+            // از اینجا فقط فایل‌هایی که manifest به آن‌ها اشاره نمی‌کند
+            Files.deleteIfExists(new File(path).toPath());
+            Files.deleteIfExists(snapFile.toPath());
+            File[] old = dir.listFiles((d, n) -> isSegmentFile(n) && !files.containsValue(n));
+            if (old != null) for (File f : old) Files.deleteIfExists(f.toPath());
+            for (long s : journalSeqs()) {
+                if (s < next) Files.deleteIfExists(journalFile(s).toPath());
+            }
+        } catch (IOException e) {
+            lock.lock();
+            try { voted.addAll(votes); } finally { lock.unlock(); }
+            throw e;
+        }
+    }
+
+    // segment هایی که با آخرین snapshot فرق دارند، و آن‌هایی که در قالب دیگری (قبل از عوض شدن --snapshot) نوشته شده‌اند
+    private Set<String> dirty(Catalog c) {
+        Set<String> names = new TreeSet<>();
+        Catalog w = written;
+        if (w == null) {
+            names.add(USERS);
+            names.add(SONGS);
+            for (int i = 0; i < COMMENT_SHARDS; i++) names.add(shardName(i));
+            names.addAll(segments.keySet());
+            return names;
+        }
+        if (c.usersById != w.usersById) names.add(USERS);
+        if (c.songsById != w.songsById || c.byCategory != w.byCategory) names.add(SONGS);
+        if (c.commentsBySong != w.commentsBySong) {
+            c.commentsBySong.forEach((songId, list) -> { if (w.commentsBySong.get(songId) != list) names.add(shard(songId)); });
+            w.commentsBySong.forEach((songId, list) -> { if (!c.commentsBySong.containsKey(songId)) names.add(shard(songId)); });
+        }
+        String ext = binary ? ".snap" : ".json";
+        segments.forEach((name, file) -> { if (!file.endsWith(ext)) names.add(name); });
+        return names;
+    }
+
+    static String shard(String songId) {
+        return shardName(Math.floorMod(songId.hashCode(), COMMENT_SHARDS));
+    }
+
+    private static String shardName(int i) {
+        return String.format("comments-%02d", i);
+    }
+
+    // <base>.<segment>.<seq>.snap|json
+    private boolean isSegmentFile(String n) {
+        String prefix = new File(base).getName() + ".";
+        return n.startsWith(prefix) && n.substring(prefix.length()).matches("(users|songs|comments-\\d+)\\.\\d+\\.(snap|json)");
+    }
+
+    // snapshot و سپس ژورنال‌ها در یک Catalog.Builder و در آخر یک نسخه؛ false یعنی چیزی برای بارگذاری
+    // نبود یا snapshot خراب است؛ ژورنال خراب (جز خط آخر یک فایل) استثنا می‌دهد. decode فایل‌ها، پر کردن اندیس‌ها و build موازی‌اند (Parallel)، replay ژورنال
+    // ترتیبی؛ زمان هر مرحله چاپ می‌شود.
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean load() {
+        long from = 0, t0 = System.nanoTime();
+        Catalog.Builder b = new Catalog.Builder();
+        List<Catalog.Part> parts = new ArrayList<>();
+        try {
+            List<Path> files = new ArrayList<>();
+            Map<String,Object> manifest = null;
+            if (manifestFile.exists()) {
+                try (Reader r = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+                    manifest = state.gson.fromJson(r, Map.class);
+                }
+                segments = new TreeMap<>((Map<String, String>) manifest.get("segments"));
+                for (String file : segments.values()) files.add(new File(dir, file).toPath());
+            } else if (snapFile.exists()) {
+                files.add(snapFile.toPath());
+            } else if (new File(path).exists()) {
+                files.add(Path.of(path));
+            }
+            // هر فایل یک task؛ BinarySnapshot هر فایل را هم تکه‌تکه decode می‌کند
+            List<ForkJoinTask<Catalog.Part>> tasks = new ArrayList<>();
+            for (Path p : files) {
+                tasks.add(ForkJoinTask.adapt(() -> p.toString().endsWith(".snap") ? BinarySnapshot.read(p) : JsonSnapshot.read(p)));
+            }
+            Parallel.all(tasks);
+            for (ForkJoinTask<Catalog.Part> t : tasks) parts.add(t.join());
+            if (manifest != null) {
+                b.version = ((Number) manifest.get("version")).longValue();
+                from = ((Number) manifest.get("journalSeq")).longValue();
+            } else if (!parts.isEmpty()) {
+                b.version = parts.get(0).version();
+                from = parts.get(0).journalSeq();
+            }
+        } catch (Exception e) { e.printStackTrace(); return false; }
+        long t1 = System.nanoTime();
+        b.putAll(parts);
+        long t2 = System.nanoTime();
+
+        long last = from;
+        int replayed = 0;
+        for (long s : journalSeqs()) {
+            last = Math.max(last, s);
+            if (s >= from) {
+                try { replayed += replay(b, journalFile(s)); }
+                catch (IOException e) { throw new UncheckedIOException(e); }
+            }
+        }
+        seq = last; // ژورنال بعدی یک فایل تازه است تا به انتهای احتمالاً نیمه‌نوشته اضافه نکنیم
+        long t3 = System.nanoTime();
+        Catalog c = b.build();
+        long t4 = System.nanoTime();
+        state.install(c);
+        System.out.printf("load: decode %d ms (%d files), index %d ms, journal %d ms (%d entries), build %d ms%n",
+                (t1 - t0) / 1_000_000, parts.size(), (t2 - t1) / 1_000_000, (t3 - t2) / 1_000_000, replayed, (t4 - t3) / 1_000_000);
+        // بدون ژورنال، segment های روی دیسک دقیقاً همین نسخه‌اند؛ در غیر این صورت اولین snapshot همه را می‌نویسد
+        written = replayed == 0 && !segments.isEmpty() ? c : null;
+        return !parts.isEmpty() || replayed > 0;
+    }
+
+    // فقط خط آخر فایل می‌تواند خراب باشد (نیمه‌نوشته بعد از crash) و نادیده گرفته می‌شود. خط خراب وسط فایل
+    // یعنی ورودی‌های بعدش روی وضعیت اشتباه اعمال می‌شوند، پس بارگذاری با خطا متوقف می‌شود
+    @SuppressWarnings("unchecked")
+    private int replay(Catalog.Builder b, File f) throws IOException {
+        int n = 0, lineNo = 0, badLine = 0;
+        RuntimeException bad = null;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lineNo++;
+                if (line.isBlank()) continue;
+                if (bad != null) {
+                    throw new IllegalStateException("journal " + f.getName() + ": bad entry at line " + badLine
+                            + " is not the last one: " + bad.getMessage());
+                }
+                try {
+                    ServerState.apply(b, state.gson.fromJson(line, Map.class));
+                    n++;
+                } catch (RuntimeException e) {
+                    bad = e;
+                    badLine = lineNo;
+                }
+            }
+        }
+        if (bad != null) System.err.println("journal " + f.getName() + ": ignored torn last entry: " + bad.getMessage());
+        return n;
+    }
+
+    @Override
+    public void checkpoint() throws IOException { compact(); }
+
+    // برای shutdown: آخرین تغییرها را می‌نویسد و ژورنال را در snapshot جمع می‌کند
+    @Override
+    public void close() throws InterruptedException, IOException {
+        flusher.shutdown();
+        flusher.awaitTermination(30, TimeUnit.SECONDS);
+        compact();
+        if (journal != null) journal.close();
+    }
+
+    private void openJournal(long s) throws IOException {
+        if (journal != null) journal.close();
+        journal = new FileOutputStream(journalFile(s), true);
+        seq = s;
+        journalBytes = 0;
+    }
+
+    private File journalFile(long s) {
+        return new File(path + ".journal." + s);
+    }
+
+    private List<Long> journalSeqs() {
+        File file = new File(path).getAbsoluteFile();
+        String prefix = file.getName() + ".journal.";
+        List<Long> seqs = new ArrayList<>();
+        File[] files = file.getParentFile().listFiles((d, n) -> n.startsWith(prefix));
+        if (files == null) return seqs;
+        for (File j : files) {
+            try { seqs.add(Long.parseLong(j.getName().substring(prefix.length()))); } catch (NumberFormatException ignored) {}
+        }
+        seqs.sort(null);
+        return seqs;
+    }
+}
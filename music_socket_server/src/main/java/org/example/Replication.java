@@ -0,0 +1,150 @@
+package org.example;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+// ====== تکثیر به follower های فقط‌خواندنی ======
+// primary (--replication-port) به هر follower اول یک snapshot از نسخه‌ی منتشرشده (همان سند JsonSnapshot در
+// یک خط) و بعد همان ورودی‌های ژورنال را به ترتیب نسخه، یک JSON در هر خط، می‌فرستد. ثبت follower زیر
+// state.lock است، پس هر ورودی با نسخه‌ی بعد از snapshot دقیقاً یک بار در صفش می‌آید.
+// follower (--follow=host:port) snapshot را نصب و هر ورودی را با ServerState.apply روی نسخه‌ی منتشرشده‌ی خودش
+// اعمال می‌کند؛ نسخه‌ها همان نسخه‌های primary اند. اگر صف یک follower پر شود یا اتصال قطع شود، follower دوباره
+// وصل می‌شود و از یک snapshot تازه شروع می‌کند. وقتی تغییری نیست هر PING_MS یک ping می‌رود تا follower اتصال
+// مرده را با timeout تشخیص دهد.
+final class Replication {
+    static final int QUEUE = 65_536;
+    static final long PING_MS = 1_000;
+    static final int TIMEOUT_MS = 10_000;
+    private static final String PING = "{\"op\":\"ping\"}";
+
+    private final ServerState state;
+    private final List<Feed> feeds = new CopyOnWriteArrayList<>();
+
+    private Replication(ServerState state) { this.state = state; }
+
+    // ---------- primary ----------
+    static Replication serve(ServerState state, int port) throws IOException {
+        Replication r = new Replication(state);
+        ServerSocket ss = new ServerSocket(port);
+        Thread.ofPlatform().name("replication-acceptor").daemon(true).start(() -> {
+            while (true) {
+                try {
+                    Socket s = ss.accept();
+                    s.setTcpNoDelay(true);
+                    r.register(s);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+        return r;
+    }
+
+    private void register(Socket s) {
+        Feed f = new Feed(s);
+        state.lock.lock();
+        try {
+            f.start = state.catalog;
+            feeds.add(f);
+        } finally { state.lock.unlock(); }
+        f.thread = Thread.ofVirtual().name("replication-" + s.getRemoteSocketAddress()).start(f);
+        System.out.println("replication: follower " + s.getRemoteSocketAddress() + " from version " + f.start.version);
+    }
+
+    // زیر state.lock و به ترتیب نسخه (ServerState.log)
+    void publish(Map<String,Object> entry) {
+        if (feeds.isEmpty()) return;
+        String line = state.gson.toJson(entry);
+        for (Feed f : feeds) {
+            if (!f.queue.offer(line)) f.drop("queue full");
+        }
+    }
+
+    private final class Feed implements Runnable {
+        final Socket sock;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE);
+        Catalog start;
+        Thread thread;
+
+        Feed(Socket sock) { this.sock = sock; }
+
+        @Override
+        public void run() {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+                JsonWriter w = new JsonWriter(out);
+                Catalog.Part p = start.part();
+                JsonSnapshot.write(p.version(), 0, p.users(), p.songs(), p.comments(), w);
+                w.flush();
+                out.write('\n');
+                out.flush();
+                start = null;
+                while (true) {
+                    String line = queue.poll(PING_MS, TimeUnit.MILLISECONDS);
+                    out.write(line == null ? PING : line);
+                    out.write('\n');
+                    while ((line = queue.poll()) != null) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                drop(e.getMessage());
+            }
+        }
+
+        void drop(String why) {
+            if (!feeds.remove(this)) return;
+            System.out.println("replication: dropped follower " + sock.getRemoteSocketAddress() + ": " + why);
+            try { sock.close(); } catch (IOException ignored) {}
+            if (thread != null) thread.interrupt();
+        }
+    }
+
+    // ---------- follower ----------
+    // thread پس‌زمینه را راه می‌اندازد و تا اولین همگام‌سازی صبر می‌کند
+    static void follow(ServerState state, String host, int port) throws InterruptedException {
+        CountDownLatch synced = new CountDownLatch(1);
+        Thread.ofPlatform().name("replication-follower").daemon(true).start(() -> {
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+                    s.setSoTimeout(TIMEOUT_MS);
+                    JsonReader r = new JsonReader(new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 1 << 16));
+                    r.setLenient(true); // چند مقدار JSON پشت سر هم در یک جریان
+                    Catalog.Part p = JsonSnapshot.read(r);
+                    Catalog.Builder b = new Catalog.Builder();
+                    b.putAll(List.of(p));
+                    b.version = p.version();
+                    Catalog c = b.build();
+                    state.lock.lock();
+                    try { state.install(c); } finally { state.lock.unlock(); }
+                    System.out.println("replica: synced with " + host + ":" + port + " at version " + c.version);
+                    synced.countDown();
+                    while (r.peek() != JsonToken.END_DOCUMENT) {
+                        Map<String,Object> e = state.gson.fromJson(r, Map.class);
+                        if (!"ping".equals(e.get("op"))) state.replicate(e);
+                    }
+                    System.out.println("replica: " + host + ":" + port + " closed the stream, reconnecting");
+                } catch (Exception e) {
+                    System.out.println("replica: lost " + host + ":" + port + " (" + e + "), retrying");
+                }
+                try { Thread.sleep(1_000); } catch (InterruptedException e) { return; }
+            }
+        });
+        System.out.println("replica: waiting for " + host + ":" + port + " ...");
+        synced.await();
+    }
+}
@@ -0,0 +1,101 @@
+package org.example;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ====== اجرای موازی درخواست‌های یک اتصال ======
+// درخواست‌های خواندنی بلافاصله روی worker ها اجرا می‌شوند؛ درخواست‌های تغییردهنده پشت سر هم
+// (به ترتیب رسیدن روی همین اتصال) اجرا می‌شوند. هر پاسخ با reqId خودش به محض تمام شدن نوشته می‌شود،
+// پس کلاینت نباید به ترتیب پاسخ‌ها تکیه کند.
+class RequestPipeline {
+    static final int MAX_IN_FLIGHT = 64;
+    static final Set<String> READ_ACTIONS = Set.of("categories", "songs", "comments", "me", "shardExport");
+
+    private final ActionHandler actions;
+    private final Executor workers;
+    private final ClientSink sink;
+    private final Runnable resume; // برای nio: دوباره فعال کردن OP_READ
+    private final Runnable onIdle; // برای nio: بستن اتصال نیمه‌بسته
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    // دم زنجیره‌ی تغییرها؛ فقط thread خواننده‌ی اتصال به آن دست می‌زند
+    private CompletableFuture<Void> mutations = CompletableFuture.completedFuture(null);
+
+    RequestPipeline(ActionHandler actions, Executor workers, ClientSink sink, Runnable resume, Runnable onIdle) {
+        this.actions = actions;
+        this.workers = workers;
+        this.sink = sink;
+        this.resume = resume;
+        this.onIdle = onIdle;
+    }
+
+    // درخواست decode شده را زمان‌بندی می‌کند؛ false یعنی تعداد درخواست‌های در جریان به سقف رسیده
+    boolean submit(Request r) {
+        inFlight.incrementAndGet();
+        Runnable task = () -> {
+            try {
+                sink.send(actions.execute(r));
+            } catch (Exception ignored) {
+            } finally {
+                complete();
+            }
+        };
+        if (isRead(r)) {
+            workers.execute(task);
+        } else {
+            mutations = mutations.thenRunAsync(task, workers);
+        }
+        return inFlight.get() < MAX_IN_FLIGHT;
+    }
+
+    // batch فقط وقتی خواندنی است که همه‌ی زیردرخواست‌هایش خواندنی باشند
+    static boolean isRead(Request r) {
+        if (!(r.data() instanceof Requests.Batch b)) return isReadAction(r.action());
+        for (Request sub : b.requests()) {
+            if (!isReadAction(sub.action())) return false;
+        }
+        return true;
+    }
+
+    // Set.of(...).contains(null) خطا می‌دهد
+    static boolean isReadAction(String action) {
+        return action != null && READ_ACTIONS.contains(action);
+    }
+
+    // برای اتصال‌های مسدود: تا آزاد شدن جا صبر می‌کند
+    void awaitCapacity() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight.get() >= MAX_IN_FLIGHT) notFull.await();
+        } finally { lock.unlock(); }
+    }
+
+    // بعد از EOF: تا تمام شدن درخواست‌های در جریان صبر می‌کند
+    void awaitIdle() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight.get() > 0) idle.await();
+        } finally { lock.unlock(); }
+    }
+
+    boolean isIdle() { return inFlight.get() == 0; }
+
+    private void complete() {
+        int n = inFlight.decrementAndGet();
+        if (n != MAX_IN_FLIGHT - 1 && n != 0) return;
+        if (n == MAX_IN_FLIGHT - 1 && resume != null) resume.run();
+        if (n == 0 && onIdle != null) onIdle.run();
+        lock.lock();
+        try {
+            notFull.signalAll();
+            if (n == 0) idle.signalAll();
+        } finally { lock.unlock(); }
+    }
+}
@@ -0,0 +1,443 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+// ====== درخواست decode شده ======
+// data برای هر action یک record از Requests است (یا null برای action های بدون داده مثل me و categories)
+// sync: پاسخ تا روی دیسک رفتن تغییرها صبر کند (StorageEngine)
+record Request(String reqId, String action, String token, Object data, boolean sync) {}
+
+// ====== decode جریانی و تایپ‌دار درخواست‌ها ======
+// پوشش (reqId/action/token/data) با JsonReader خوانده می‌شود و data مستقیم به record همان action تبدیل
+// می‌شود؛ هیچ Map یا عدد boxed ساخته نمی‌شود. JSON خراب یا نوع اشتباه همان لحظه کل درخواست را رد می‌کند
+// (اگر reqId خوانده شده باشد با پاسخ خطا)، و فیلد اجباری غایب فقط همان درخواست را Invalid می‌کند.
+// در batch نوع اشتباه فقط همان زیردرخواست را Invalid می‌کند: بقیه‌ی عنصرش رد می‌شود و زیردرخواست‌های دیگر اجرا می‌شوند.
+final class Requests {
+    record Signup(String username, String email, String password) {}
+    record Login(String userOrEmail, String password) {}
+    record UpdateProfile(String username, String email) {}
+    record AddCredit(double amount) {}
+    record Subscription(String plan) {}
+    record Purchase(String songId) {}
+    // limit صفر یعنی کل دسته (بدون صفحه‌بندی)؛ cursor همان next صفحه‌ی قبل
+    record Songs(String category, int limit, String cursor) {}
+    record Rate(String songId, double value) {}
+    record Comments(String songId, int limit, String cursor) {}
+    record AddComment(String songId, String text) {}
+    record LikeComment(String commentId, boolean up) {}
+    record Batch(List<Request> requests) {}
+    // بین ShardRouter و گره‌های --shard: بخش تکثیرشده (همه‌ی کاربران، آهنگ‌ها و توکن‌ها) و/یا کاربران و آهنگ‌های
+    // نام‌برده با نظرهایشان؛ import همان نتیجه‌ی export است و release یعنی آهنگ‌های تازه اعلام شوند
+    record ShardExport(boolean replicated, List<String> userIds, List<String> songIds) {}
+    record ShardImport(Catalog.Part snapshot, Map<String, String> tokens, boolean release) {}
+    // فقط router؛ token همان --admin-token است
+    record AddNode(String node) {}
+    // اجرای آن همین پیام خطا را برمی‌گرداند
+    record Invalid(String message) {}
+
+    private Requests() {}
+
+    static Request parse(String line) throws IOException {
+        JsonReader in = new JsonReader(new StringReader(line));
+        Request r = read(in);
+        if (r.data() instanceof Invalid) return r; // خواننده وسط راه رها شده
+        boolean trailing;
+        try {
+            trailing = in.peek() != JsonToken.END_DOCUMENT;
+        } catch (IOException ex) {
+            trailing = true;
+        }
+        if (!trailing) return r;
+        if (r.reqId() == null) throw new MalformedJsonException("trailing data after request");
+        return new Request(r.reqId(), r.action(), r.token(), new Invalid("malformed request: trailing data"), false);
+    }
+
+    static Request read(JsonReader in) throws IOException {
+        return read(in, false);
+    }
+
+    // nested: زیردرخواست batch؛ خطای نوع به جای رها کردن خواننده وسط عنصر، بقیه‌ی عنصر را رد می‌کند
+    private static Request read(JsonReader in, boolean nested) throws IOException {
+        String reqId = null, action = null, token = null;
+        Object data = null;
+        boolean sync = false, done = false;
+        JsonElement early = null; // data ای که قبل از action آمده
+        String at = nested ? in.getPath() : null;
+        try {
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "reqId" -> reqId = str(in);
+                    case "action" -> action = action(in);
+                    case "token" -> token = str(in);
+                    case "sync" -> sync = bool(in);
+                    case "data" -> {
+                        if (action != null) data = data(action, in);
+                        else early = JsonParser.parseReader(in);
+                    }
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            done = true;
+            if (early != null) data = data(action, early);
+        } catch (IOException | RuntimeException ex) {
+            // JSON خراب (IOException) جریان را قابل ادامه نمی‌گذارد
+            if (nested && !(ex instanceof IOException)) {
+                if (!done) skipRest(in, at);
+            } else if (reqId == null) {
+                throw ex;
+            }
+            return new Request(reqId, action, token, new Invalid("malformed request: " + ex.getMessage()), false);
+        }
+        return new Request(reqId, action, token, data, sync);
+    }
+
+    static Object data(String action, JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+        if (action == null) { in.skipValue(); return null; }
+        return switch (action) {
+            case "signup" -> signup(in);
+            case "login" -> login(in);
+            case "updateProfile" -> updateProfile(in);
+            case "addCredit" -> addCredit(in);
+            case "subscription" -> subscription(in);
+            case "purchase" -> purchase(in);
+            case "songs" -> songs(in);
+            case "rate" -> rate(in);
+            case "comments" -> comments(in);
+            case "addComment" -> addComment(in);
+            case "likeComment" -> likeComment(in);
+            case "batch" -> batch(in);
+            case "shardExport" -> shardExport(in);
+            case "shardImport" -> shardImport(in);
+            case "addNode" -> addNode(in);
+            default -> { in.skipValue(); yield null; }
+        };
+    }
+
+    // برای پروتکل دودویی که data را به صورت درخت می‌دهد؛ همان decoder جریانی با TypeAdapter.fromJsonTree روی درخت
+    static Object data(String action, JsonElement tree) throws IOException {
+        if (tree == null || tree.isJsonNull()) return null;
+        try {
+            return new Data(action).fromJsonTree(tree);
+        } catch (JsonIOException ex) {
+            if (ex.getCause() instanceof IOException io) throw io;
+            throw ex;
+        }
+    }
+
+    private static final class Data extends TypeAdapter<Object> {
+        private final String action;
+
+        Data(String action) { this.action = action; }
+
+        @Override public Object read(JsonReader in) throws IOException { return data(action, in); }
+
+        @Override public void write(JsonWriter out, Object value) { throw new UnsupportedOperationException(); }
+    }
+
+    // ---------- data هر action ----------
+    private static Object signup(JsonReader in) throws IOException {
+        String username = null, email = null, password = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "username" -> username = str(in);
+                case "email" -> email = str(in);
+                case "password" -> password = str(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        if (username == null) return missing("username");
+        if (email == null) return missing("email");
+        if (password == null) return missing("password");
+        return new Signup(username, email, password);
+    }
+
+    private static Object login(JsonReader in) throws IOException {
+        String userOrEmail = null, password = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "userOrEmail" -> userOrEmail = str(in);
+                case "password" -> password = str(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        if (userOrEmail == null) return missing("userOrEmail");
+        if (password == null) return missing("password");
+        return new Login(userOrEmail, password);
+    }
+
+    private static Object updateProfile(JsonReader in) throws IOException {
+        String username = null, email = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "username" -> username = str(in);
+                case "email" -> email = str(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return new UpdateProfile(username, email);
+    }
+
+    private static Object addCredit(JsonReader in) throws IOException {
+        double amount = Double.NaN;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("amount")) amount = num(in); else in.skipValue();
+        }
+        in.endObject();
+        if (Double.isNaN(amount)) return missing("amount");
+        return new AddCredit(amount);
+    }
+
+    private static Object subscription(JsonReader in) throws IOException {
+        String plan = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("plan")) plan = str(in); else in.skipValue();
+        }
+        in.endObject();
+        return new Subscription(plan);
+    }
+
+    private static Object purchase(JsonReader in) throws IOException {
+        String songId = songIdOnly(in);
+        return songId == null ? missing("songId") : new Purchase(songId);
+    }
+
+    private static Object songs(JsonReader in) throws IOException {
+        String category = null, cursor = null;
+        double limit = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "category" -> category = str(in);
+                case "limit" -> limit = num(in);
+                case "cursor" -> cursor = str(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        if (category == null) return missing("category");
+        if (limit < 0 || limit != Math.floor(limit)) return new Invalid("invalid limit");
+        return new Songs(category, (int) Math.min(limit, Integer.MAX_VALUE), cursor);
+    }
+
+    private static Object rate(JsonReader in) throws IOException {
+        String songId = null;
+        double value = Double.NaN;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "songId" -> songId = str(in);
+                case "value" -> value = num(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        if (songId == null) return missing("songId");
+        if (Double.isNaN(value)) return missing("value");
+        return new Rate(songId, value);
+    }
+
+    private static Object comments(JsonReader in) throws IOException {
+        String songId = null, cursor = null;
+        double limit = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "songId" -> songId = str(in);
+                case "limit" -> limit = num(in);
+                case "cursor" -> cursor = str(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        if (songId == null) return missing("songId");
+        if (limit < 0 || limit != Math.floor(limit)) return new Invalid("invalid limit");
+        return new Comments(songId, (int) Math.min(limit, Integer.MAX_VALUE), cursor);
+    }
+
+    private static Object addComment(JsonReader in) throws IOException {
+        String songId = null, text = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "songId" -> songId = str(in);
+                case "text" -> text = str(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        if (songId == null) return missing("songId");
+        return new AddComment(songId, text);
+    }
+
+    private static Object likeComment(JsonReader in) throws IOException {
+        String commentId = null;
+        boolean up = false;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "commentId" -> commentId = str(in);
+                case "up" -> up = bool(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return commentId == null ? missing("commentId") : new LikeComment(commentId, up);
+    }
+
+    private static Object batch(JsonReader in) throws IOException {
+        List<Request> requests = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (!in.nextName().equals("requests")) { in.skipValue(); continue; }
+            requests = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                if (requests.size() == ActionHandler.MAX_BATCH) {
+                    throw new IllegalStateException("too many requests in batch (max " + ActionHandler.MAX_BATCH + ")");
+                }
+                requests.add(read(in, true));
+            }
+            in.endArray();
+        }
+        in.endObject();
+        return requests == null ? missing("requests") : new Batch(requests);
+    }
+
+    private static Object shardExport(JsonReader in) throws IOException {
+        boolean replicated = false;
+        List<String> userIds = List.of(), songIds = List.of();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "replicated" -> replicated = bool(in);
+                case "userIds" -> userIds = strings(in);
+                case "songIds" -> songIds = strings(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return new ShardExport(replicated, userIds, songIds);
+    }
+
+    private static Object shardImport(JsonReader in) throws IOException {
+        Catalog.Part snapshot = null;
+        Map<String, String> tokens = new HashMap<>();
+        boolean release = false;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "snapshot" -> snapshot = JsonSnapshot.read(in);
+                case "tokens" -> {
+                    in.beginObject();
+                    while (in.hasNext()) tokens.put(in.nextName(), str(in));
+                    in.endObject();
+                }
+                case "release" -> release = bool(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return snapshot == null ? missing("snapshot") : new ShardImport(snapshot, tokens, release);
+    }
+
+    private static Object addNode(JsonReader in) throws IOException {
+        String node = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("node")) node = str(in); else in.skipValue();
+        }
+        in.endObject();
+        return node == null ? missing("node") : new AddNode(node);
+    }
+
+    private static List<String> strings(JsonReader in) throws IOException {
+        List<String> l = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) l.add(str(in));
+        in.endArray();
+        return l;
+    }
+
+    private static String songIdOnly(JsonReader in) throws IOException {
+        String songId = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("songId")) songId = str(in); else in.skipValue();
+        }
+        in.endObject();
+        return songId;
+    }
+
+    // ---------- مقادیر ----------
+    private static Invalid missing(String field) {
+        return new Invalid("missing field: " + field);
+    }
+
+    private static String str(JsonReader in) throws IOException {
+        JsonToken t = in.peek();
+        if (t == JsonToken.NULL) { in.nextNull(); return null; }
+        if (t != JsonToken.STRING) throw new IllegalStateException("expected string at " + in.getPath());
+        return in.nextString();
+    }
+
+    private static double num(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.NUMBER) throw new IllegalStateException("expected number at " + in.getPath());
+        return in.nextDouble();
+    }
+
+    private static boolean bool(JsonReader in) throws IOException {
+        JsonToken t = in.peek();
+        if (t == JsonToken.NULL) { in.nextNull(); return false; }
+        if (t != JsonToken.BOOLEAN) throw new IllegalStateException("expected boolean at " + in.getPath());
+        return in.nextBoolean();
+    }
+
+    // بعد از خطای نوع وسط عنصری که مسیرش at است: هر '.' یا '[' اضافه در مسیر فعلی یک ظرف باز داخل عنصر است
+    // (نام‌های روی مسیر همه کلیدهای شناخته‌شده‌اند، کلید ناشناس کامل با skipValue رد شده). هر ظرف تا انتها رد و
+    // بسته می‌شود؛ اگر خود عنصر شیء نبود همان مقدار رد می‌شود.
+    private static void skipRest(JsonReader in, String at) throws IOException {
+        String path = in.getPath();
+        if (!path.startsWith(at)) throw new IllegalStateException("cannot resync batch at " + path);
+        int depth = 0;
+        for (int i = at.length(); i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '.' || c == '[') depth++;
+        }
+        if (depth == 0) { in.skipValue(); return; }
+        for (; depth > 0; depth--) {
+            while (in.hasNext()) in.skipValue();
+            if (in.peek() == JsonToken.END_OBJECT) in.endObject(); else in.endArray();
+        }
+    }
+
+    // در پروتکل دودویی action زیرِ batch می‌تواند شناسه‌ی عددی باشد
+    private static String action(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NUMBER) return ActionHandler.actionName(in.nextInt());
+        return str(in);
+    }
+}
@@ -0,0 +1,406 @@
+package org.example;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.example.SocketMusicServer.option;
+
+// ====== بنچمارک‌ها ======
+//   connections: سرور را داخل همین JVM روی یک پورت آزاد بالا می‌آورد، تعداد زیادی اتصال بیکار باز می‌کند و
+//                سپس در حضور آن‌ها تأخیر درخواست‌ها را اندازه می‌گیرد.
+//   protocol:    حجم و هزینه‌ی CPU هر درخواست songs/comments در پروتکل JSON و دودویی.
+//   decode:      بایت تخصیص‌یافته و زمان decode هر درخواست: Map عمومی Gson در برابر Requests جریانی.
+//   db:          نوشتن rate ها در SQLite از چند thread: هر کدام یک commit در برابر group commit در SqliteStorage.
+//   startup:     زمان نوشتن و بارگذاری snapshot با N آهنگ (و N/10 نظر): JSON در برابر BinarySnapshot، همراه با
+//                رشد اوج old gen در هر کدام (تقریب حافظه‌ی اضافه‌ای که بیش از چند GC جوان زنده می‌ماند).
+//   compact:     بعد از snapshot کامل، یک موج نظر روی یک آهنگ و سپس compact دوباره: حجم فایل‌های بازنویسی‌شده
+//                در برابر حجم کل snapshot.
+//   heap:        حافظه‌ی هیپ هر Song (با رشته‌هایش) در N آهنگ: آهنگ‌هایی که سرور می‌سازد (randomSong) و همان‌ها
+//                بعد از گذر از JSON (بارگذاری snapshot JSON یا SQLite) که هر رشته نمونه‌ی جدای خودش را دارد.
+//   java -cp <classpath> org.example.ServerBench connections --modes=thread,virtual --connections=5000 --clients=64 --requests=200
+//   java -cp <classpath> org.example.ServerBench protocol --songs=200 --comments=200 --iterations=20000
+//   java -cp <classpath> org.example.ServerBench decode --iterations=200000
+//   java -cp <classpath> org.example.ServerBench db --threads=8 --writes=2000
+//   java -Xmx4g -Xmn64m -cp <classpath> org.example.ServerBench startup --songs=10000,100000,1000000
+//   java -cp <classpath> org.example.ServerBench compact --songs=100000 --comments=500
+//   java -Xmx4g -cp <classpath> org.example.ServerBench heap --songs=1000000
+class ServerBench {
+    public static void main(String[] args) throws Exception {
+        String bench = args.length > 0 && !args[0].startsWith("--") ? args[0] : "connections";
+        switch (bench) {
+            case "connections" -> connections(args);
+            case "protocol" -> protocol(args);
+            case "decode" -> decode(args);
+            case "db" -> db(args);
+            case "startup" -> startup(args);
+            case "compact" -> compact(args);
+            case "heap" -> heap(args);
+            default -> throw new IllegalArgumentException("unknown benchmark: " + bench);
+        }
+    }
+
+    static void connections(String[] args) throws Exception {
+        int connections = Integer.parseInt(option(args, "connections", "5000"));
+        int clients = Integer.parseInt(option(args, "clients", "64"));
+        int requests = Integer.parseInt(option(args, "requests", "200"));
+        System.out.printf("%-8s %12s %10s %12s %10s %10s %10s%n",
+                "mode", "connections", "threads", "rss(MB)", "p50(us)", "p99(us)", "max(us)");
+        for (String mode : option(args, "modes", "thread,virtual").split(",")) {
+            connectionMode(mode.trim(), connections, clients, requests);
+        }
+    }
+
+    static void connectionMode(String mode, int connections, int clients, int requests) throws Exception {
+        ServerState state = new ServerState();
+        state.seedData();
+
+        ServerSocket ss = new ServerSocket(0, 4096);
+        ExecutorService workers = SocketMusicServer.newWorkers("virtual".equals(mode), 2 * Runtime.getRuntime().availableProcessors());
+        Thread acceptor = new Thread(() -> {
+            try { SocketMusicServer.serveBlocking(state, ss, "virtual".equals(mode), workers); } catch (IOException ignored) {}
+        }, "bench-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // ۱) اتصال‌های بیکار تا سقف مشخص یا اولین خطا
+        List<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) idle.add(new Socket("127.0.0.1", ss.getLocalPort()));
+        } catch (IOException e) {
+            System.out.println(mode + ": stopped after " + idle.size() + " connections: " + e.getMessage());
+        }
+        long deadline = System.currentTimeMillis() + 30_000;
+        // اتصال بیکار هنوز پروتکلش معلوم نیست و در state.clients نیست؛ اتصال‌های accept شده شمرده می‌شوند
+        while (state.connections.get() < idle.size() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        int accepted = state.connections.get();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rss = rssKb();
+
+        // ۲) تأخیر درخواست‌های songs در حضور اتصال‌های بیکار
+        String line = "{\"reqId\":\"b\",\"action\":\"songs\",\"data\":{\"category\":\"Pop\"}}\n";
+        long[] lat = new long[clients * requests];
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> fs = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int base = c * requests;
+            fs.add(pool.submit(() -> {
+                try (Socket s = new Socket("127.0.0.1", ss.getLocalPort())) {
+                    s.setTcpNoDelay(true);
+                    OutputStream out = s.getOutputStream();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                    byte[] req = line.getBytes(StandardCharsets.UTF_8);
+                    for (int i = 0; i < requests; i++) {
+                        long t0 = System.nanoTime();
+                        out.write(req);
+                        out.flush();
+                        if (in.readLine() == null) throw new EOFException();
+                        lat[base + i] = System.nanoTime() - t0;
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : fs) f.get();
+        pool.shutdown();
+
+        Arrays.sort(lat);
+        System.out.printf("%-8s %12d %10d %12s %10d %10d %10d%n", mode, accepted, threads,
+                rss < 0 ? "n/a" : String.valueOf(rss / 1024),
+                lat[lat.length / 2] / 1000, lat[(int) (lat.length * 0.99)] / 1000, lat[lat.length - 1] / 1000);
+
+        for (Socket s : idle) try { s.close(); } catch (IOException ignored) {}
+        ss.close();
+        deadline = System.currentTimeMillis() + 30_000;
+        while (state.connections.get() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        workers.shutdown();
+    }
+
+    static void protocol(String[] args) throws Exception {
+        int songs = Integer.parseInt(option(args, "songs", "200"));
+        int comments = Integer.parseInt(option(args, "comments", "200"));
+        int iterations = Integer.parseInt(option(args, "iterations", "20000"));
+
+        ServerState state = new ServerState();
+        Song first = null;
+        for (int i = 0; i < songs; i++) {
+            Song s = state.makeRandomSong();
+            s.category = "Bench";
+            state.addSong(s);
+            if (first == null) first = s;
+        }
+        for (int i = 0; i < comments; i++) {
+            Comment c = new Comment(UUID.randomUUID().toString(), first.id, "user" + i, "comment number " + i);
+            state.addComment(c);
+        }
+        ActionHandler actions = new ActionHandler(state);
+        String reqId = UUID.randomUUID().toString();
+
+        System.out.printf("%-10s %-8s %12s %12s%n", "action", "codec", "bytes", "us/request");
+        for (String action : List.of("songs", "comments")) {
+            Map<String,Object> data = action.equals("songs") ? Map.of("category", "Bench") : Map.of("songId", first.id);
+            // درخواست همان‌طور که روی سیم می‌آید: یک خط JSON یا یک frame دودویی
+            String line = JsonCodec.GSON.toJson(Map.of("reqId", reqId, "action", action, "data", data));
+            BinaryCodec.Writer w = new BinaryCodec.Writer(64);
+            w.u8(Arrays.asList(BinaryCodec.ACTIONS).indexOf(action));
+            w.str(reqId);
+            w.str(null);
+            w.value(data);
+            byte[] frame = w.frame();
+
+            for (String codec : List.of("json", "binary")) {
+                boolean bin = codec.equals("binary");
+                int bytes = 0;
+                long t0 = 0;
+                for (int i = 0; i < 2 * iterations; i++) {
+                    if (i == iterations) t0 = System.nanoTime(); // نیمه‌ی اول گرم کردن JIT
+                    Request m = bin ? BinaryCodec.decodeRequest(frame, 4, frame.length - 4) : Requests.parse(line);
+                    Response r = actions.execute(m);
+                    byte[] out = bin ? BinaryCodec.encode(r) : JsonCodec.encode(r);
+                    bytes = out.length;
+                }
+                double us = (System.nanoTime() - t0) / 1000.0 / iterations;
+                System.out.printf("%-10s %-8s %12d %12.1f%n", action, codec, bytes, us);
+            }
+        }
+    }
+
+    // تا JIT نتیجه‌ی decode را حذف نکند
+    static volatile long blackhole;
+
+    static void decode(String[] args) throws Exception {
+        int iterations = Integer.parseInt(option(args, "iterations", "200000"));
+        String id = UUID.randomUUID().toString(), token = UUID.randomUUID().toString();
+        Map<String,String> lines = new LinkedHashMap<>();
+        lines.put("rate", "{\"reqId\":\"" + id + "\",\"action\":\"rate\",\"token\":\"" + token
+                + "\",\"data\":{\"songId\":\"" + id + "\",\"value\":4.5}}");
+        lines.put("songs", "{\"reqId\":\"" + id + "\",\"action\":\"songs\",\"data\":{\"category\":\"Pop\"}}");
+        lines.put("addComment", "{\"reqId\":\"" + id + "\",\"action\":\"addComment\",\"token\":\"" + token
+                + "\",\"data\":{\"songId\":\"" + id + "\",\"text\":\"a perfectly ordinary comment\"}}");
+        StringBuilder batch = new StringBuilder("{\"reqId\":\"" + id + "\",\"action\":\"batch\",\"token\":\"" + token
+                + "\",\"data\":{\"requests\":[");
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) batch.append(',');
+            batch.append("{\"action\":\"comments\",\"data\":{\"songId\":\"").append(id).append("\"}}");
+        }
+        lines.put("batch(10)", batch.append("]}}").toString());
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().threadId();
+        System.out.printf("%-12s %-8s %14s %12s%n", "request", "decoder", "bytes/request", "ns/request");
+        for (Map.Entry<String,String> e : lines.entrySet()) {
+            String line = e.getValue();
+            for (String decoder : List.of("map", "typed")) {
+                boolean typed = decoder.equals("typed");
+                long sink = 0, t0 = 0, a0 = 0;
+                for (int i = 0; i < 2 * iterations; i++) {
+                    if (i == iterations) { t0 = System.nanoTime(); a0 = mx.getThreadAllocatedBytes(tid); } // نیمه‌ی اول گرم کردن JIT
+                    Object r = typed ? Requests.parse(line) : JsonCodec.GSON.fromJson(line, Map.class);
+                    sink += r.hashCode();
+                }
+                long ns = (System.nanoTime() - t0) / iterations;
+                long bytes = (mx.getThreadAllocatedBytes(tid) - a0) / iterations;
+                blackhole += sink;
+                System.out.printf("%-12s %-8s %14d %12d%n", e.getKey(), decoder, bytes, ns);
+            }
+        }
+    }
+
+    static void startup(String[] args) throws Exception {
+        System.out.printf("%-10s %-8s %10s %10s %10s %14s %14s%n",
+                "songs", "format", "size(MB)", "save(ms)", "load(ms)", "save-peak(MB)", "load-peak(MB)");
+        for (String n : option(args, "songs", "10000,100000,1000000").split(",")) {
+            int songs = Integer.parseInt(n.trim());
+            ServerState state = new ServerState();
+            state.install(syntheticCatalog(songs));
+            for (String format : List.of("json", "binary")) {
+                Path dir = Files.createTempDirectory("startup");
+                String data = dir.resolve("server-data.json").toString();
+                Persister writer = new Persister(state, data, format.equals("binary"), 1000, Long.MAX_VALUE);
+                long base = settledOldGen();
+                long t0 = System.nanoTime();
+                writer.compact();
+                long save = System.nanoTime() - t0, savePeak = oldGenPeak() - base;
+                long bytes = 0;
+                for (File f : Objects.requireNonNull(dir.toFile().listFiles())) bytes += f.length();
+                long best = Long.MAX_VALUE, loadPeak = Long.MAX_VALUE;
+                for (int i = 0; i < 3; i++) {
+                    ServerState fresh = new ServerState();
+                    base = settledOldGen();
+                    t0 = System.nanoTime();
+                    if (!new Persister(fresh, data, format.equals("binary"), 1000, Long.MAX_VALUE).load()) throw new IllegalStateException("load failed");
+                    best = Math.min(best, System.nanoTime() - t0);
+                    loadPeak = Math.min(loadPeak, oldGenPeak() - base);
+                    if (fresh.catalog.songsById.size() != songs) throw new IllegalStateException("lost songs");
+                }
+                System.out.printf("%-10d %-8s %10.1f %10d %10d %14.1f %14.1f%n", songs, format, bytes / 1e6,
+                        save / 1_000_000, best / 1_000_000, savePeak / 1e6, loadPeak / 1e6);
+                for (File f : Objects.requireNonNull(dir.toFile().listFiles())) Files.delete(f.toPath());
+                Files.delete(dir);
+            }
+        }
+    }
+
+    static void compact(String[] args) throws Exception {
+        int songs = Integer.parseInt(option(args, "songs", "100000"));
+        int comments = Integer.parseInt(option(args, "comments", "500"));
+        System.out.printf("%-10s %-8s %12s %16s %12s%n", "songs", "format", "total(MB)", "rewritten(KB)", "compact(ms)");
+        for (String format : List.of("json", "binary")) {
+            ServerState state = new ServerState();
+            state.install(syntheticCatalog(songs));
+            Path dir = Files.createTempDirectory("compact");
+            Persister p = new Persister(state, dir.resolve("server-data.json").toString(), format.equals("binary"), 1000, Long.MAX_VALUE);
+            state.storage = p;
+            p.compact();
+            Map<String, Long> before = new HashMap<>();
+            for (File f : Objects.requireNonNull(dir.toFile().listFiles())) before.put(f.getName(), f.lastModified());
+            String hot = state.catalog.songsById.keySet().iterator().next();
+            for (int i = 0; i < comments; i++) state.addComment(new Comment(UUID.randomUUID().toString(), hot, "user" + i % 100, "hot " + i));
+            Thread.sleep(10); // تا mtime فایل بازنویسی‌شده فرق کند
+            long t0 = System.nanoTime();
+            p.compact();
+            long ms = (System.nanoTime() - t0) / 1_000_000, total = 0, rewritten = 0;
+            for (File f : Objects.requireNonNull(dir.toFile().listFiles())) {
+                if (f.getName().contains(".journal.")) continue;
+                total += f.length();
+                Long mtime = before.get(f.getName());
+                if (mtime == null || mtime != f.lastModified()) rewritten += f.length();
+            }
+            System.out.printf("%-10d %-8s %12.1f %16.1f %12d%n", songs, format, total / 1e6, rewritten / 1e3, ms);
+            for (File f : Objects.requireNonNull(dir.toFile().listFiles())) Files.delete(f.toPath());
+            Files.delete(dir);
+        }
+    }
+
+    // N آهنگ در 8 دسته، 100 کاربر با چند خرید و N/10 نظر
+    static Catalog syntheticCatalog(int songs) {
+        Random rnd = new Random(42);
+        Catalog.Builder b = new Catalog.Builder();
+        String[] cats = {"Pop", "Rock", "Jazz", "Classical", "Hip-Hop", "Electronic", "Indie", "Folk"};
+        List<String> ids = new ArrayList<>(songs);
+        for (int i = 0; i < songs; i++) {
+            String id = UUID.randomUUID().toString();
+            Song s = new Song(id, "Track " + i, "Artist " + rnd.nextInt(songs / 10 + 1), cats[i % cats.length],
+                    rnd.nextBoolean() ? 0.0 : 0.89, 1 + 4 * rnd.nextDouble(), rnd.nextInt(3000),
+                    "https://picsum.photos/seed/" + id.substring(0, 6) + "/600/600",
+                    "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-" + (1 + i % 16) + ".mp3");
+            s.addedAt = 1_700_000_000_000L + i * 1000L;
+            b.putSong(s);
+            ids.add(id);
+        }
+        for (int i = 0; i < 100; i++) {
+            User u = new User(UUID.randomUUID().toString(), "user" + i, "user" + i + "@example.com", "pw" + i);
+            for (int k = 0; k < 20; k++) u.purchased.add(ids.get(rnd.nextInt(songs)));
+            b.putUser(u);
+        }
+        for (int i = 0; i < songs / 10; i++) {
+            Comment c = new Comment(UUID.randomUUID().toString(), ids.get(rnd.nextInt(songs)), "user" + rnd.nextInt(100), "comment " + i);
+            c.votes(rnd.nextInt(50), 0);
+            c.createdAt = new Date(1_700_000_000_000L + i * 1000L);
+            b.putComment(c);
+        }
+        return b.build();
+    }
+
+    static void heap(String[] args) {
+        int n = Integer.parseInt(option(args, "songs", "1000000"));
+        List<String> cats = List.of("Pop", "Rock", "Jazz", "Classical", "Hip-Hop", "Electronic", "Indie", "Folk");
+        System.out.printf("%-10s %-8s %14s%n", "songs", "shape", "bytes/song");
+        for (String shape : List.of("server", "json")) {
+            Song[] songs = new Song[n];
+            long base = settledOldGen();
+            for (int i = 0; i < n; i++) {
+                Song s = ServerState.randomSong(cats);
+                if (shape.equals("json")) s = JsonCodec.GSON.fromJson(new String(s.json(), StandardCharsets.UTF_8), Song.class);
+                songs[i] = s;
+            }
+            long used = settledOldGen() - base;
+            System.out.printf("%-10d %-8s %14.1f%n", n, shape, (double) used / n);
+            blackhole += songs[n - 1].title.length();
+        }
+    }
+
+    static void db(String[] args) throws Exception {
+        int threads = Integer.parseInt(option(args, "threads", "8"));
+        Path file = Files.createTempFile("bench", ".db");
+        String url = "jdbc:sqlite:" + file;
+        ServerState state = new ServerState();
+        state.seedData();
+        try (Database db = new Database(url)) {
+            new SqliteStorage(state, db, 5).checkpoint();
+        }
+
+        // هر rate از thread های مختلف، مثل درخواست‌های هم‌زمان
+        int writes = Integer.parseInt(option(args, "writes", "2000"));
+        List<Song> songs = new ArrayList<>(state.catalog.songsById.values());
+        System.out.printf("%-14s %8s %12s%n", "writes", "count", "writes/s");
+        for (String mode : List.of("autocommit", "group-commit")) {
+            try (Database db = new Database(url)) {
+                SqliteStorage storage = new SqliteStorage(state, db, 5);
+                if (mode.equals("group-commit")) storage.start();
+                long t0 = System.nanoTime();
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                List<Future<?>> done = new ArrayList<>();
+                for (int i = 0; i < writes; i++) {
+                    Song s = songs.get(i % songs.size());
+                    int count = s.ratingCount + i + 1;
+                    done.add(pool.submit(() -> {
+                        if (mode.equals("autocommit")) {
+                            db.updateSongRating(s.id, 4.0, count);
+                        } else {
+                            Map<String,Object> e = new HashMap<>();
+                            e.put("op", "rating"); e.put("songId", s.id); e.put("ratingAverage", 4.0); e.put("ratingCount", count);
+                            storage.append(e);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : done) f.get();
+                storage.sync();
+                long ns = System.nanoTime() - t0;
+                pool.shutdown();
+                storage.close();
+                System.out.printf("%-14s %8d %12d%n", mode, writes, writes * 1_000_000_000L / ns);
+            }
+        }
+        for (String suffix : List.of("", "-wal", "-shm")) Files.deleteIfExists(Path.of(file + suffix));
+    }
+
+    // بعد از GC کامل، مصرف old gen را برمی‌گرداند و اوجش را صفر می‌کند
+    static long settledOldGen() {
+        System.gc();
+        long used = 0;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isOldGen(pool)) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    static long oldGenPeak() {
+        long peak = 0;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) if (isOldGen(pool)) peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private static boolean isOldGen(java.lang.management.MemoryPoolMXBean pool) {
+        return pool.getType() == java.lang.management.MemoryType.HEAP && (pool.getName().contains("Old") || pool.getName().contains("Tenured"));
+    }
+
+    // VmRSS از /proc (فقط لینوکس)
+    static long rssKb() {
+        try {
+            for (String l : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (l.startsWith("VmRSS:")) return Long.parseLong(l.replaceAll("\\D+", ""));
+            }
+        } catch (Exception ignored) {}
+        return -1;
+    }
+}
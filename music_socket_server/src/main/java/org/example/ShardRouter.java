@@ -0,0 +1,494 @@
+package org.example;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.gson.*;
+
+// ====== router جلوی چند گره‌ی --shard ======
+// کلاینت‌ها همان پروتکل (JSON یا دودویی) را با router حرف می‌زنند؛ ClientHandler/NioServer و RequestPipeline
+// همان‌اند و فقط ActionHandler هر action را به route می‌دهد. router با هر گره چند اتصال JSON دارد (--node-connections)
+// که درخواست‌های همه‌ی کلاینت‌ها با reqId خودش رویشان multiplex می‌شوند. RequestPipeline گره تغییرهای هر اتصال را
+// پشت سر هم اجرا می‌کند، پس نوشتن‌های تک‌گره‌ای (rate، addComment، likeComment) و خواندن‌ها بین اتصال‌ها چرخشی
+// پخش می‌شوند تا موازی اجرا شوند؛ نوشتن‌های تکثیری فقط از اتصال اول می‌روند تا ترتیبشان روی همه‌ی گره‌ها یکی بماند.
+//   - نظرها و شمارنده‌های هر آهنگ (امتیاز، دانلود) فقط روی مالک آن در HashRing معتبرند: rate، comments و
+//     addComment به مالک می‌روند و likeComment (که songId ندارد) به همه، و پاسخ گره‌ای که نظر را دارد برمی‌گردد.
+//   - کاربران، توکن‌ها و خود آهنگ‌ها (پس دسته‌ها) روی همه‌ی گره‌ها تکثیر می‌شوند: نوشتن‌های کاربر و purchase با
+//     یک ترتیب به همه فرستاده می‌شوند و پاسخ گره‌ی اول (purchase: مالک آهنگ) برمی‌گردد. signup و login فقط روی
+//     گره‌ی اول اجرا و نتیجه‌شان با shardImport به بقیه کپی می‌شود تا id کاربر و توکن همه‌جا یکی باشد.
+//   - categories و songs از همه جمع می‌شوند: ترتیب و cursor از گره‌ی اول و هر آهنگ از مالکش.
+//   - آهنگ تازه را router می‌سازد و به همه import می‌کند؛ رویداد new_release فقط از اتصال مالک آهنگ جلو می‌رود.
+//   - addNode (با --admin-token) گره‌ی تازه را اضافه می‌کند: بخش تکثیرشده از گره‌ی اول و آهنگ‌هایی که مالکشان
+//     عوض می‌شود (با نظرهایشان) از مالک قبلی کپی می‌شوند، بعد حلقه‌ی تازه منتشر می‌شود. در این فاصله نوشتن‌ها
+//     منتظر می‌مانند ولی خواندن‌ها از حلقه‌ی قبلی جواب می‌گیرند. نسخه‌ی قدیمی روی مالک قبلی می‌ماند ولی دیگر
+//     به آن مراجعه نمی‌شود (حلقه فقط بزرگ می‌شود).
+// گره‌های --nodes باید از قبل هم‌گام باشند (مثلاً همه خالی، که router خودش seed می‌کند)؛ sync درخواست روی
+// دیسک گره‌ها منتظر نمی‌ماند.
+final class ShardRouter {
+    static final long TIMEOUT_MS = 30_000;
+    static final long RELEASE_SECONDS = 25;
+
+    private final ServerState state;
+    private final String adminToken;
+    private final int connections;
+    private volatile HashRing<Node> ring;
+    // نوشتن‌های تکثیری به همه‌ی گره‌ها با یک ترتیب فرستاده می‌شوند
+    private final ReentrantLock order = new ReentrantLock();
+    // نوشتن‌ها read lock را تا رسیدن پاسخ نگه می‌دارند؛ addNode با write lock منتظر آن‌ها می‌ماند
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+    private ShardRouter(ServerState state, HashRing<Node> ring, String adminToken, int connections) {
+        this.state = state;
+        this.ring = ring;
+        this.adminToken = adminToken;
+        this.connections = Math.max(1, connections);
+    }
+
+    static ShardRouter start(ServerState state, List<String> nodes, int vnodes, String adminToken, int connections) throws IOException {
+        HashRing<Node> ring = new HashRing<>(vnodes);
+        ShardRouter r = new ShardRouter(state, ring, adminToken, connections);
+        for (String name : nodes) {
+            Node n = r.new Node(name.trim());
+            n.connect();
+            ring = ring.with(n.name, n);
+        }
+        r.ring = ring;
+        if (r.categories().isEmpty()) r.seed();
+        ScheduledExecutorService sched = Executors.newSingleThreadScheduledExecutor();
+        sched.scheduleAtFixedRate(() -> {
+            try { r.release(); } catch (Exception ignored) {}
+        }, RELEASE_SECONDS, RELEASE_SECONDS, TimeUnit.SECONDS);
+        for (Node n : ring.nodes()) System.out.printf("router: %s owns %.1f%% of the ring%n", n.name, 100 * ring.share(n));
+        return r;
+    }
+
+    // مثل ActionHandler.run: نتیجه یا RuntimeException با پیام خطا
+    Object route(String action, String token, Object data) {
+        if (data instanceof Requests.Invalid bad) throw new RuntimeException(bad.message());
+        HashRing<Node> r = ring;
+        return switch (action) {
+            case "categories" -> categories();
+            case "songs" -> songs(r, token, data(data, Requests.Songs.class));
+            case "me" -> result(first(r).call(action, token, data));
+            case "comments" -> result(r.owner(songId(data)).call(action, token, data));
+            case "rate", "addComment" -> write(() -> result(ring.owner(songId(data)).call(action, token, data)));
+            case "likeComment" -> write(() -> likeComment(token, data));
+            case "purchase" -> write(() -> result(fanOut(ring, action, token, data, ring.owner(songId(data)))));
+            case "updateProfile", "addCredit", "subscription" -> write(() -> result(fanOut(ring, action, token, data, first(ring))));
+            case "signup", "login" -> write(() -> login(action, token, data));
+            case "ring" -> ring(r);
+            case "addNode" -> addNode(token, data(data, Requests.AddNode.class).node());
+            default -> throw new RuntimeException("unknown action: " + action);
+        };
+    }
+
+    private Object write(Callable<Object> body) {
+        gate.readLock().lock();
+        try {
+            return body.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally { gate.readLock().unlock(); }
+    }
+
+    // ---------- خواندن‌های پخش‌شده ----------
+    private List<String> categories() {
+        Set<String> all = new LinkedHashSet<>();
+        for (JsonObject res : scatter(ring, "categories", null, null).values()) {
+            for (JsonElement c : ok(res).getAsJsonArray()) all.add(c.getAsString());
+        }
+        return new ArrayList<>(all);
+    }
+
+    // همه‌ی گره‌ها همان آهنگ‌ها و همان صفحه را دارند؛ فقط نسخه‌ی مالک هر آهنگ شمارنده‌های درست را دارد
+    private Object songs(HashRing<Node> r, String token, Requests.Songs d) {
+        Map<Node, JsonObject> all = scatter(r, "songs", token, d);
+        Map<String, JsonElement> owned = new HashMap<>();
+        JsonElement base = null;
+        for (Map.Entry<Node, JsonObject> e : all.entrySet()) {
+            JsonElement res = ok(e.getValue());
+            if (base == null) base = res;
+            for (JsonElement s : list(res)) {
+                String id = s.getAsJsonObject().get("id").getAsString();
+                if (r.owner(id) == e.getKey()) owned.put(id, s);
+            }
+        }
+        JsonArray merged = new JsonArray();
+        for (JsonElement s : list(base)) merged.add(owned.getOrDefault(s.getAsJsonObject().get("id").getAsString(), s));
+        if (base.isJsonArray()) return plain(merged);
+        JsonObject page = base.getAsJsonObject().deepCopy();
+        page.add("songs", merged);
+        return plain(page);
+    }
+
+    private static JsonArray list(JsonElement songsResult) {
+        return songsResult.isJsonArray() ? songsResult.getAsJsonArray() : songsResult.getAsJsonObject().getAsJsonArray("songs");
+    }
+
+    // ---------- نوشتن‌ها ----------
+    // فقط گره‌ی مالک نظر موفق می‌شود
+    private Object likeComment(String token, Object data) {
+        JsonObject answer = null;
+        for (JsonObject res : scatter(ring, "likeComment", token, data).values()) {
+            if (res.get("ok").getAsBoolean()) return plain(res.get("result"));
+            if (answer == null) answer = res;
+        }
+        return result(answer);
+    }
+
+    // روی گره‌ی اول، بعد کاربر تازه (signup) یا فقط توکن تازه (login) به بقیه کپی می‌شود
+    @SuppressWarnings("unchecked")
+    private Object login(String action, String token, Object data) {
+        HashRing<Node> r = ring;
+        Node first = first(r);
+        Map<String, Object> res = (Map<String, Object>) result(first.call(action, token, data));
+        String userId = (String) ((Map<String, Object>) res.get("user")).get("id");
+        JsonObject imp;
+        if (action.equals("signup")) {
+            imp = ok(first.call("shardExport", null, new Requests.ShardExport(false, List.of(userId), List.of()))).getAsJsonObject();
+        } else {
+            imp = new JsonObject();
+            imp.add("snapshot", snapshot(List.of()));
+            JsonObject toks = new JsonObject();
+            toks.addProperty((String) res.get("token"), userId);
+            imp.add("tokens", toks);
+        }
+        List<Node> rest = new ArrayList<>(r.nodes());
+        rest.remove(first);
+        fanOut(rest, "shardImport", null, imp, null);
+        return res;
+    }
+
+    // آهنگ تازه روی همه؛ گره‌ها خودشان new_release می‌دهند و router فقط رویداد مالک را جلو می‌برد
+    void release() {
+        Song s = ServerState.randomSong(categories());
+        write(() -> fanOut(ring, "shardImport", null, songsImport(List.of(s), true), null));
+    }
+
+    private void seed() {
+        write(() -> result(fanOut(ring, "shardImport", null, songsImport(ServerState.seedSongs(), false), null)));
+        login("signup", null, new Requests.Signup(ServerState.DEMO[0], ServerState.DEMO[1], ServerState.DEMO[2]));
+        System.out.println("router: seeded songs + demo user (demo/DemoPass123) on " + ring.nodes().size() + " nodes");
+    }
+
+    private static JsonObject songsImport(List<Song> songs, boolean release) {
+        JsonObject imp = new JsonObject();
+        imp.add("snapshot", snapshot(songs));
+        imp.addProperty("release", release);
+        return imp;
+    }
+
+    private static JsonObject snapshot(List<Song> songs) {
+        JsonObject snap = new JsonObject();
+        snap.addProperty("version", 0);
+        snap.add("users", new JsonArray());
+        JsonArray arr = new JsonArray();
+        for (Song s : songs) arr.add(JsonCodec.GSON.toJsonTree(s.toMap()));
+        snap.add("songs", arr);
+        snap.add("comments", new JsonArray());
+        snap.addProperty("journalSeq", 0);
+        return snap;
+    }
+
+    // ---------- عضویت ----------
+    private Object ring(HashRing<Node> r) {
+        List<Object> nodes = new ArrayList<>();
+        for (Node n : r.nodes()) nodes.add(Map.of("node", n.name, "share", r.share(n)));
+        return nodes;
+    }
+
+    private Object addNode(String token, String name) {
+        if (adminToken == null || !adminToken.equals(token)) throw new RuntimeException("addNode needs the router's --admin-token");
+        long started = System.nanoTime();
+        Node n = new Node(name);
+        try {
+            n.connect();
+        } catch (IOException e) {
+            throw new RuntimeException("cannot reach " + name + ": " + e.getMessage());
+        }
+        int moved = 0, comments = 0;
+        gate.writeLock().lock();
+        try {
+            HashRing<Node> before = ring;
+            if (before.contains(name)) throw new RuntimeException("already in the ring: " + name);
+            HashRing<Node> after = before.with(name, n);
+            JsonObject all = ok(first(before).call("shardExport", null, new Requests.ShardExport(true, List.of(), List.of()))).getAsJsonObject();
+            ok(n.call("shardImport", null, all));
+            Map<Node, List<String>> byOwner = new LinkedHashMap<>();
+            for (JsonElement s : all.getAsJsonObject("snapshot").getAsJsonArray("songs")) {
+                String id = s.getAsJsonObject().get("id").getAsString();
+                if (after.owner(id) == n) byOwner.computeIfAbsent(before.owner(id), k -> new ArrayList<>()).add(id);
+            }
+            for (Map.Entry<Node, List<String>> e : byOwner.entrySet()) {
+                JsonObject part = ok(e.getKey().call("shardExport", null, new Requests.ShardExport(false, List.of(), e.getValue()))).getAsJsonObject();
+                ok(n.call("shardImport", null, part));
+                moved += e.getValue().size();
+                comments += part.getAsJsonObject("snapshot").getAsJsonArray("comments").size();
+            }
+            ring = after;
+        } catch (RuntimeException e) {
+            n.close();
+            throw e;
+        } finally { gate.writeLock().unlock(); }
+        long ms = (System.nanoTime() - started) / 1_000_000;
+        System.out.println("router: added " + name + ", moved " + moved + " songs and " + comments + " comments in " + ms + " ms");
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("node", name);
+        m.put("songs", moved);
+        m.put("comments", comments);
+        m.put("ring", ring(ring));
+        return m;
+    }
+
+    // ---------- فرستادن ----------
+    private static Node first(HashRing<Node> r) { return r.nodes().get(0); }
+
+    private Map<Node, JsonObject> scatter(HashRing<Node> r, String action, String token, Object data) {
+        Map<Node, CompletableFuture<JsonObject>> sent = new LinkedHashMap<>();
+        for (Node n : r.nodes()) sent.put(n, n.send(action, token, data));
+        Map<Node, JsonObject> res = new LinkedHashMap<>();
+        sent.forEach((n, f) -> res.put(n, n.await(f)));
+        return res;
+    }
+
+    private JsonObject fanOut(HashRing<Node> r, String action, String token, Object data, Node answer) {
+        return fanOut(r.nodes(), action, token, data, answer);
+    }
+
+    // همه با یک ترتیب؛ پاسخ answer (یا اولین گره) برمی‌گردد و ناهمخوانی بقیه فقط گزارش می‌شود
+    private JsonObject fanOut(List<Node> nodes, String action, String token, Object data, Node answer) {
+        Map<Node, CompletableFuture<JsonObject>> sent = new LinkedHashMap<>();
+        order.lock();
+        try {
+            for (Node n : nodes) sent.put(n, n.sendOrdered(action, token, data));
+        } finally { order.unlock(); }
+        Map<Node, JsonObject> res = new LinkedHashMap<>();
+        sent.forEach((n, f) -> res.put(n, n.await(f)));
+        if (res.isEmpty()) return null;
+        JsonObject a = answer != null ? res.get(answer) : res.values().iterator().next();
+        res.forEach((n, o) -> {
+            if (o.get("ok").getAsBoolean() != a.get("ok").getAsBoolean()) {
+                System.err.println("router: " + action + " diverged on " + n.name + ": " + o.get(o.get("ok").getAsBoolean() ? "ok" : "error"));
+            }
+        });
+        return a;
+    }
+
+    // ---------- پاسخ گره‌ها ----------
+    private static JsonElement ok(JsonObject res) {
+        if (!res.get("ok").getAsBoolean()) throw new RuntimeException(res.get("error").getAsString());
+        return res.get("result");
+    }
+
+    private static Object result(JsonObject res) {
+        return plain(ok(res));
+    }
+
+    // JsonElement به Map/List/String/Long/Double تا JsonCodec و BinaryCodec مثل نتیجه‌های خود سرور بنویسندش
+    static Object plain(JsonElement e) {
+        if (e == null || e.isJsonNull()) return null;
+        if (e.isJsonArray()) {
+            List<Object> l = new ArrayList<>(e.getAsJsonArray().size());
+            for (JsonElement x : e.getAsJsonArray()) l.add(plain(x));
+            return l;
+        }
+        if (e.isJsonObject()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> x : e.getAsJsonObject().entrySet()) m.put(x.getKey(), plain(x.getValue()));
+            return m;
+        }
+        JsonPrimitive p = e.getAsJsonPrimitive();
+        if (p.isBoolean()) return p.getAsBoolean();
+        if (p.isString()) return p.getAsString();
+        String n = p.getAsString();
+        if (n.indexOf('.') >= 0 || n.indexOf('e') >= 0 || n.indexOf('E') >= 0) return p.getAsDouble();
+        return p.getAsLong();
+    }
+
+    private static <T> T data(Object data, Class<T> type) {
+        if (!type.isInstance(data)) throw new RuntimeException("missing data");
+        return type.cast(data);
+    }
+
+    private static String songId(Object data) {
+        return switch (data) {
+            case Requests.Rate d -> d.songId();
+            case Requests.Comments d -> d.songId();
+            case Requests.AddComment d -> d.songId();
+            case Requests.Purchase d -> d.songId();
+            case null, default -> throw new RuntimeException("missing data");
+        };
+    }
+
+    // رویداد یک گره؛ new_release فقط از مالک آهنگ، بقیه فقط از گره‌ی اول
+    private void event(Node from, JsonObject ev) {
+        HashRing<Node> r = ring;
+        JsonElement song = ev.get("song");
+        boolean mine = song != null && song.isJsonObject() ? r.owner(song.getAsJsonObject().get("id").getAsString()) == from : first(r) == from;
+        if (!mine) return;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> m = (Map<String, Object>) plain(ev);
+        state.broadcast(m);
+    }
+
+    // ---------- اتصال‌های یک گره ----------
+    final class Node {
+        final String name;
+        private final Link[] links;
+        private final AtomicLong next = new AtomicLong();
+
+        Node(String name) {
+            int colon = name.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("expected host:port, got " + name);
+            this.name = name;
+            String host = name.substring(0, colon);
+            int port = Integer.parseInt(name.substring(colon + 1));
+            links = new Link[connections];
+            for (int i = 0; i < links.length; i++) links[i] = new Link(this, host, port, i);
+        }
+
+        void connect() throws IOException {
+            for (Link l : links) l.connect();
+        }
+
+        CompletableFuture<JsonObject> send(String action, String token, Object data) {
+            return links[(int) (next.getAndIncrement() % links.length)].send(action, token, data);
+        }
+
+        // نوشتن‌های تکثیری: همیشه همان اتصال، پس گره آن‌ها را به همان ترتیب فرستاده‌شده اجرا می‌کند
+        CompletableFuture<JsonObject> sendOrdered(String action, String token, Object data) {
+            return links[0].send(action, token, data);
+        }
+
+        JsonObject call(String action, String token, Object data) {
+            return await(send(action, token, data));
+        }
+
+        // خطای اتصال یا timeout هم یک پاسخ ناموفق است
+        JsonObject await(CompletableFuture<JsonObject> f) {
+            try {
+                return f.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return failure(name + " timed out");
+            } catch (ExecutionException e) {
+                return failure(name + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return failure("interrupted");
+            }
+        }
+
+        void close() {
+            for (Link l : links) l.close();
+        }
+    }
+
+    // ---------- یک اتصال به گره ----------
+    // درخواست‌ها با reqId محلی روی یک سوکت؛ thread خواننده هر پاسخ را به future منتظرش می‌دهد.
+    // اگر اتصال بیفتد درخواست‌های در راه خطا می‌گیرند و درخواست بعدی دوباره وصل می‌شود.
+    // گره رویدادها را به همه‌ی اتصال‌ها می‌فرستد؛ فقط رویدادهای اتصال اول جلو می‌روند.
+    final class Link {
+        private final Node node;
+        private final String host;
+        private final int port;
+        private final int index;
+        private final Map<String, CompletableFuture<JsonObject>> pending = new ConcurrentHashMap<>();
+        private final AtomicLong ids = new AtomicLong();
+        private final ReentrantLock lock = new ReentrantLock();
+        private Socket sock;
+        private Writer out;
+
+        Link(Node node, String host, int port, int index) {
+            this.node = node;
+            this.host = host;
+            this.port = port;
+            this.index = index;
+        }
+
+        void connect() throws IOException {
+            lock.lock();
+            try {
+                if (sock != null) return;
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress(host, port), (int) TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+                sock = s;
+                Thread.ofVirtual().name("router-" + node.name + "-" + index).start(() -> read(s));
+            } finally { lock.unlock(); }
+        }
+
+        CompletableFuture<JsonObject> send(String action, String token, Object data) {
+            String id = Long.toString(ids.incrementAndGet());
+            JsonObject req = new JsonObject();
+            req.addProperty("reqId", id);
+            req.addProperty("action", action);
+            if (token != null) req.addProperty("token", token);
+            if (data != null) req.add("data", data instanceof JsonElement j ? j : JsonCodec.GSON.toJsonTree(data));
+            CompletableFuture<JsonObject> f = new CompletableFuture<>();
+            pending.put(id, f);
+            lock.lock();
+            try {
+                connect();
+                out.write(req.toString());
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                pending.remove(id);
+                f.completeExceptionally(e);
+                if (sock != null) closed(sock, e);
+            } finally { lock.unlock(); }
+            return f;
+        }
+
+        private void read(Socket s) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    JsonObject m = JsonParser.parseString(line).getAsJsonObject();
+                    if (m.has("event")) {
+                        if (index == 0) event(node, m);
+                        continue;
+                    }
+                    CompletableFuture<JsonObject> f = pending.remove(m.get("reqId").getAsString());
+                    if (f != null) f.complete(m);
+                }
+                closed(s, new EOFException("connection closed"));
+            } catch (IOException | RuntimeException e) {
+                closed(s, e);
+            }
+        }
+
+        private void closed(Socket s, Exception why) {
+            lock.lock();
+            try {
+                if (s == null || sock != s) return;
+                sock = null;
+                try { s.close(); } catch (IOException ignored) {}
+                System.err.println("router: lost " + node.name + " connection " + index + " (" + why.getMessage() + ")");
+                for (CompletableFuture<JsonObject> f : pending.values()) f.completeExceptionally(why);
+                pending.clear();
+            } finally { lock.unlock(); }
+        }
+
+        void close() {
+            closed(sock, new IOException("closed"));
+        }
+    }
+
+    private static JsonObject failure(String error) {
+        JsonObject o = new JsonObject();
+        o.addProperty("ok", false);
+        o.addProperty("error", error);
+        return o;
+    }
+}
@@ -362,52 +362,138 @@ import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import com.google.gson.*;
 
 // ====== ENTRYPOINT ======
 public class SocketMusicServer {
     public static void main(String[] args) throws Exception {
-        final int port = 29168;
+        if (args.length > 0 && args[0].equals("migrate")) { migrate(args); return; }
+        final long started = System.nanoTime();
+        final int port = Integer.parseInt(option(args, "port", "29168"));
         final String DATA_PATH = "server-data.json";
+        final String mode = option(args, "mode", "thread"); // thread | virtual | nio
 
         ServerState state = new ServerState();
-        state.setDataPath(DATA_PATH);
+        state.outboxCapacity = Integer.parseInt(option(args, "outbox", "256"));
+        state.slowConsumer = Outbox.Policy.parse(option(args, "slow-consumer", "drop-oldest"));
 
-        boolean loaded = state.loadFromDisk(DATA_PATH);
-        if (!loaded || !state.hasAnyData()) {
-            state.seedData();
-            state.saveToDisk(DATA_PATH);
+        // --follow=host:port: بدون ذخیره‌ی محلی، کاتالوگ از primary می‌آید و نوشتن‌ها رد می‌شوند
+        String follow = option(args, "follow", null);
+        if (follow != null) {
+            int colon = follow.lastIndexOf(':');
+            state.replicaOf = follow;
+            Replication.follow(state, follow.substring(0, colon), Integer.parseInt(follow.substring(colon + 1)));
+        } else if (option(args, "nodes", null) != null) {
+            // --nodes=host:port,...: router جلوی گره‌های --shard (ShardRouter)؛ خودش چیزی ذخیره نمی‌کند.
+            // --node-connections: تعداد اتصال‌های router به هر گره
+            state.router = ShardRouter.start(state, List.of(option(args, "nodes", null).split(",")),
+                    Integer.parseInt(option(args, "vnodes", "128")), option(args, "admin-token", null),
+                    Integer.parseInt(option(args, "node-connections", "4")));
+        } else {
+            state.shard = Arrays.asList(args).contains("--shard");
+            StorageEngine storage = storage(state, args, DATA_PATH);
+            boolean loaded = storage.load();
+            if (!state.shard && (!loaded || !state.hasAnyData())) {
+                state.seedData();
+                storage.checkpoint();
+            }
+            state.storage = storage;
+            storage.start();
+
+            String replicationPort = option(args, "replication-port", null);
+            if (replicationPort != null) {
+                state.replication = Replication.serve(state, Integer.parseInt(replicationPort));
+                System.out.println("replication: serving followers on port " + replicationPort);
+            }
+
+            if (!state.shard) {
+                ScheduledExecutorService sched = Executors.newSingleThreadScheduledExecutor();
+                sched.scheduleAtFixedRate(() -> {
+                    try {
+                        Song s = state.makeRandomSong();
+                        state.publishSong(s);
+                        state.announce(s);
+                    } catch (Exception ignored) {}
+                }, 25, 25, TimeUnit.SECONDS);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try { state.storage.close(); } catch (Exception ignored) {}
+            }));
+        }
+
+        ExecutorService workers = newWorkers("virtual".equals(mode),
+                Integer.parseInt(option(args, "workers", String.valueOf(2 * Runtime.getRuntime().availableProcessors()))));
+        System.out.println("startup: ready to accept after " + (System.nanoTime() - started) / 1_000_000 + " ms");
+
+        if ("nio".equals(mode)) {
+            int reactors = Integer.parseInt(option(args, "reactors", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            new NioServer(state, port, reactors, workers).serve();
+            return;
         }
 
         ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Socket server listening on port " + port + " ...");
-
-        ScheduledExecutorService sched = Executors.newSingleThreadScheduledExecutor();
-        sched.scheduleAtFixedRate(() -> {
-            try { state.saveToDisk(DATA_PATH); } catch (Exception ignored) {}
-        }, 15, 15, TimeUnit.SECONDS);
-
-        sched.scheduleAtFixedRate(() -> {
-            try {
-                Song s = state.makeRandomSong();
-                state.addSong(s);
-                state.saveToDisk(DATA_PATH);
-                Map<String, Object> ev = new HashMap<>();
-                ev.put("event", "new_release");
-                ev.put("song", s.toMap());
-                state.broadcast(ev);
-            } catch (Exception ignored) {}
-        }, 25, 25, TimeUnit.SECONDS);
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try { state.saveToDisk(DATA_PATH); } catch (Exception ignored) {}
-        }));
+        System.out.println("Socket server (" + mode + ") listening on port " + port + " ...");
+        serveBlocking(state, serverSocket, "virtual".equals(mode), workers);
+    }
+
+    // --storage=json|sqlite
+    // json: ژورنال حداکثر هر flush-interval میلی‌ثانیه یک بار روی دیسک می‌رود (write-behind) و از
+    // compact-bytes به بعد در snapshot (--snapshot=binary|json) جمع می‌شود. sqlite: تغییرها هر commit-interval میلی‌ثانیه در یک
+    // تراکنش در --db نوشته می‌شوند (group commit).
+    // در هر دو حالت کل کاتالوگ در heap است؛ با sqlite صفحه‌های songs و comments از خود جدول‌ها خوانده می‌شوند
+    // (پس از commit تغییرهای در صف) و بقیه‌ی خواندن‌ها از Catalog.
+    static StorageEngine storage(ServerState state, String[] args, String dataPath) {
+        String kind = option(args, "storage", "json");
+        return switch (kind) {
+            case "json" -> new Persister(state, option(args, "data", dataPath), !"json".equals(option(args, "snapshot", "binary")),
+                    Long.parseLong(option(args, "flush-interval", "1000")),
+                    Long.parseLong(option(args, "compact-bytes", String.valueOf(4 << 20))));
+            case "sqlite" -> new SqliteStorage(state, new Database("jdbc:sqlite:" + option(args, "db", "music.db")),
+                    Long.parseLong(option(args, "commit-interval", "5")));
+            default -> throw new IllegalArgumentException("unknown storage: " + kind);
+        };
+    }
 
+    // migrate [--data=server-data.json] [--db=music.db]
+    // snapshot و ژورنال JSON را می‌خواند و جدول‌های SQLite را با آن جایگزین می‌کند
+    static void migrate(String[] args) throws Exception {
+        ServerState state = new ServerState();
+        String data = option(args, "data", "server-data.json");
+        if (!new Persister(state, data, true, 1000, Long.MAX_VALUE).load()) throw new IllegalStateException("nothing to migrate in " + data);
+        String db = option(args, "db", "music.db");
+        StorageEngine sqlite = new SqliteStorage(state, new Database("jdbc:sqlite:" + db), 5);
+        sqlite.checkpoint();
+        sqlite.close();
+        Catalog c = state.catalog;
+        System.out.println("migrated " + c.usersById.size() + " users, " + c.songsById.size() + " songs, "
+                + c.commentsBySong.values().stream().mapToInt(List::size).sum() + " comments to " + db);
+    }
+
+    // یک thread به ازای هر اتصال؛ virtual یا platform
+    static void serveBlocking(ServerState state, ServerSocket serverSocket, boolean virtual, ExecutorService workers) throws IOException {
+        Thread.Builder builder = virtual ? Thread.ofVirtual().name("client-", 0) : Thread.ofPlatform().name("client-", 0);
         while (true) {
             Socket sock = serverSocket.accept();
-            new ClientHandler(sock, state).start();
+            builder.start(new ClientHandler(sock, state, workers));
         }
     }
+
+    // worker های اجرای درخواست‌ها (RequestPipeline)
+    static ExecutorService newWorkers(boolean virtual, int threads) {
+        if (virtual) return Executors.newVirtualThreadPerTaskExecutor();
+        return Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("worker-", 0).daemon(true).factory());
+    }
+
+    // --name=value از آرگومان‌های خط فرمان
+    static String option(String[] args, String name, String def) {
+        String prefix = "--" + name + "=";
+        for (String a : args) if (a.startsWith(prefix)) return a.substring(prefix.length());
+        return def;
+    }
 }
 
 // ====== مدل‌ها و وضعیت ======
@@ -419,6 +505,15 @@ class User {
 
     User(String id, String u, String e, String p) { this.id=id; this.username=u; this.email=e; this.password=p; }
 
+    // نمونه‌ی منتشرشده تغییر نمی‌کند؛ تغییر روی کپی انجام و دوباره منتشر می‌شود (Catalog)
+    User copy() {
+        User u = new User(id, username, email, password);
+        u.credit = credit;
+        u.premium = premium;
+        u.purchased = new HashSet<>(purchased);
+        return u;
+    }
+
     Map<String,Object> toMap() {
         Map<String,Object> m = new LinkedHashMap<>();
         m.put("id", id); m.put("username", username); m.put("email", email);
@@ -452,27 +547,100 @@ class User {
 }
 
 class Song {
-    String id, title, artist, category, albumArtUrl, sourceUrl;
+    String id, title, artist, category;
     int playCount = 0, ratingCount = 1, downloads = 0;
     double price = 0.0, ratingAverage = 4.5;
-    Date addedAt = new Date();
+    long addedAt = System.currentTimeMillis(); // epoch ms
+
+    // ---------- نمایش فشرده ----------
+    // artist و category مقدارهای تکراری کمی دارند و از دیکشنری مشترک می‌آیند (یک نمونه برای هر مقدار، حتی بعد از
+    // بارگذاری JSON/SQLite که هر رشته را جدا می‌سازد). نشانی‌های تصویر و فایل آهنگ‌های سرور از قالب ثابتی ساخته
+    // شده‌اند و فقط بخش متغیرشان نگه داشته می‌شود؛ seed تصویر معمولاً همان 6 حرف اول id است و اصلاً نگه داشته
+    // نمی‌شود. نشانی‌ای که با قالب نخواند کامل نگه داشته می‌شود.
+    private static final String ART_PREFIX = "https://picsum.photos/seed/", ART_SUFFIX = "/600/600";
+    private static final String SOURCE_PREFIX = "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-", SOURCE_SUFFIX = ".mp3";
+    private static final int ART_TEMPLATE = 1, ART_FROM_ID = 2, SOURCE_TEMPLATE = 4;
+    private static final int DICT_MAX = 1 << 16;
+    private static final ConcurrentHashMap<String, String> DICT = new ConcurrentHashMap<>();
+
+    private String art, source; // بخش متغیر قالب یا کل نشانی
+    private byte urls;          // بیت‌های *_TEMPLATE و ART_FROM_ID
+
+    // Song منتشرشده تغییر نمی‌کند (rate/purchase کپی تازه منتشر می‌کنند)، پس fragment کش‌شده‌ی JSON
+    // برای همین نمونه همیشه معتبر است
+    private volatile byte[] json;
+
+    private static final java.time.format.DateTimeFormatter ISO =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(java.time.ZoneId.systemDefault());
 
     Song(String id, String t, String a, String c, double price, double rating, int dl, String art, String url) {
-        this.id=id; this.title=t; this.artist=a; this.category=c; this.price=price;
-        this.ratingAverage=rating; this.downloads=dl; this.albumArtUrl=art; this.sourceUrl=url;
-        this.addedAt = new Date();
+        this.id=id; this.title=t; this.artist=dict(a); this.category=dict(c); this.price=price;
+        this.ratingAverage=rating; this.downloads=dl;
+        String seed = middle(art, ART_PREFIX, ART_SUFFIX);
+        if (seed == null) this.art = art;
+        else if (seed.length() == 6 && id != null && id.startsWith(seed)) urls |= ART_TEMPLATE | ART_FROM_ID;
+        else { urls |= ART_TEMPLATE; this.art = seed; }
+        String n = middle(url, SOURCE_PREFIX, SOURCE_SUFFIX);
+        if (n == null) this.source = url;
+        else { urls |= SOURCE_TEMPLATE; this.source = dict(n); }
+    }
+
+    String albumArtUrl() {
+        if ((urls & ART_TEMPLATE) == 0) return art;
+        return ART_PREFIX + ((urls & ART_FROM_ID) != 0 ? id.substring(0, 6) : art) + ART_SUFFIX;
+    }
+
+    String sourceUrl() {
+        return (urls & SOURCE_TEMPLATE) == 0 ? source : SOURCE_PREFIX + source + SOURCE_SUFFIX;
+    }
+
+    private static String middle(String s, String prefix, String suffix) {
+        if (s == null || !s.startsWith(prefix) || !s.endsWith(suffix) || s.length() < prefix.length() + suffix.length()) return null;
+        return s.substring(prefix.length(), s.length() - suffix.length());
+    }
+
+    // بعد از DICT_MAX مقدار، رشته‌ی تازه دیگر نگه داشته نمی‌شود تا فیلدی که برخلاف انتظار پرتنوع است دیکشنری را بی‌حد بزرگ نکند
+    static String dict(String s) {
+        if (s == null) return null;
+        String d = DICT.get(s);
+        if (d != null) return d;
+        if (DICT.size() >= DICT_MAX) return s;
+        d = DICT.putIfAbsent(s, s);
+        return d != null ? d : s;
     }
 
     Map<String,Object> toMap() {
         Map<String,Object> m = new LinkedHashMap<>();
         m.put("id", id); m.put("title", title); m.put("artist", artist); m.put("category", category);
         m.put("price", price); m.put("ratingAverage", ratingAverage); m.put("ratingCount", ratingCount);
-        m.put("downloads", downloads); m.put("albumArtUrl", albumArtUrl); m.put("sourceUrl", sourceUrl);
+        m.put("downloads", downloads); m.put("albumArtUrl", albumArtUrl()); m.put("sourceUrl", sourceUrl());
         m.put("addedAt", iso(addedAt));
         return m;
     }
 
-    static String iso(Date d){ return new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").format(d); }
+    static String iso(Date d){ return ISO.format(d.toInstant()); }
+    static String iso(long ms){ return ISO.format(java.time.Instant.ofEpochMilli(ms)); }
+
+    // formatter مشترک و thread-safe؛ برخلاف SimpleDateFormat برای هر تاریخ شیء تازه نمی‌سازد
+    static Date parseIso(String s){ return Date.from(java.time.Instant.from(ISO.parse(s))); }
+
+    // همان toMap() به صورت UTF-8
+    byte[] json() {
+        byte[] b = json;
+        if (b == null) json = b = JsonCodec.GSON.toJson(toMap()).getBytes(StandardCharsets.UTF_8);
+        return b;
+    }
+
+    Song copy() {
+        Song s = new Song(id, title, artist, category, price, ratingAverage, downloads, null, null);
+        s.art = art;
+        s.source = source;
+        s.urls = urls;
+        s.playCount = playCount;
+        s.ratingCount = ratingCount;
+        s.addedAt = addedAt;
+        return s;
+    }
 
     // === هلپرهای امن برای تبدیل ===
     private static double getDouble(Object v, double def) {
@@ -501,7 +669,7 @@ class Song {
         );
         Object rc = m.get("ratingCount"); if (rc instanceof Number n) s.ratingCount = n.intValue();
         Object ad = m.get("addedAt"); if (ad instanceof String str) {
-            try { s.addedAt = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").parse(str); } catch(Exception ignore){}
+            try { s.addedAt = parseIso(str).getTime(); } catch(Exception ignore){}
         }
         return s;
     }
@@ -509,15 +677,32 @@ class Song {
 
 class Comment {
     String id, songId, user, text;
-    int likes=0, dislikes=0;
     Date createdAt = new Date();
+    // likes در 32 بیت بالا و dislikes در 32 بیت پایین: رأی یک جمع اتمی است و خواننده هر دو را با یک بار خواندن
+    // سازگار می‌بیند. تنها بخشی از موجودیت‌های منتشرشده که در جا عوض می‌شود (ServerState.vote)
+    private final AtomicLong votes = new AtomicLong();
 
     Comment(String id, String sid, String u, String t){ this.id=id; this.songId=sid; this.user=u; this.text=t; }
 
+    Comment copy(){
+        Comment c = new Comment(id, songId, user, text);
+        c.votes.set(votes.get());
+        c.createdAt = createdAt;
+        return c;
+    }
+
+    long votes(){ return votes.get(); }
+    void votes(int likes, int dislikes){ votes.set((long) likes << 32 | (dislikes & 0xFFFFFFFFL)); }
+    // مقدار بعد از این رأی
+    long vote(boolean up){ return votes.addAndGet(up ? 1L << 32 : 1); }
+    static int likes(long votes){ return (int) (votes >>> 32); }
+    static int dislikes(long votes){ return (int) votes; }
+
     Map<String,Object> toMap(){
         Map<String,Object> m = new LinkedHashMap<>();
+        long v = votes.get();
         m.put("id", id); m.put("songId", songId); m.put("user", user); m.put("text", text);
-        m.put("likes", likes); m.put("dislikes", dislikes);
+        m.put("likes", likes(v)); m.put("dislikes", dislikes(v));
         m.put("createdAt", Song.iso(createdAt));
         return m;
     }
@@ -529,10 +714,10 @@ class Comment {
             (String)m.get("user"),
             (String)m.get("text")
         );
-        Object lk = m.get("likes"); if (lk instanceof Number n) c.likes = n.intValue();
-        Object dk = m.get("dislikes"); if (dk instanceof Number n) c.dislikes = n.intValue();
+        Object lk = m.get("likes"), dk = m.get("dislikes");
+        c.votes(lk instanceof Number n ? n.intValue() : 0, dk instanceof Number n ? n.intValue() : 0);
         Object ct = m.get("createdAt"); if (ct instanceof String str) {
-            try { c.createdAt = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").parse(str); } catch(Exception ignore){}
+            try { c.createdAt = Song.parseIso(str); } catch(Exception ignore){}
         }
         return c;
     }
@@ -540,41 +725,78 @@ class Comment {
 
 class ServerState {
     final Gson gson = new Gson();
-    final Map<String, User> usersById = new ConcurrentHashMap<>();
-    final Map<String, User> usersByName = new ConcurrentHashMap<>();
-    final Map<String, User> usersByEmail = new ConcurrentHashMap<>();
     final Map<String, String> tokens = new ConcurrentHashMap<>(); // token -> userId
 
-    final Map<String, List<Song>> byCategory = new ConcurrentHashMap<>();
-    final Map<String, Song> songsById = new ConcurrentHashMap<>();
-    final Map<String, List<Comment>> commentsBySong = new ConcurrentHashMap<>();
+    // نسخه‌ی منتشرشده‌ی کاتالوگ و کاربران؛ خواننده‌ها فقط یک بار آن را می‌خوانند و قفلی نمی‌گیرند
+    volatile Catalog catalog = Catalog.EMPTY;
+
+    // گیرنده‌های رویداد: فقط اتصال‌هایی که پروتکلشان معلوم شده (رویداد نباید پیش از پاسخ MAGIC برود)
+    final Set<ClientSink> clients = ConcurrentHashMap.newKeySet();
+    final AtomicInteger connections = new AtomicInteger(); // همه‌ی اتصال‌های باز، از لحظه‌ی accept
+    int outboxCapacity = 256;
+    Outbox.Policy slowConsumer = Outbox.Policy.DROP_OLDEST;
 
-    final Set<PrintWriter> clients = ConcurrentHashMap.newKeySet();
+    // فقط نویسنده‌ها: نسخه‌ی بعد را می‌سازند، منتشر می‌کنند و در ژورنال ثبت می‌کنند.
+    // به جای synchronized تا virtual thread ها به carrier سنجاق نشوند
+    final ReentrantLock lock = new ReentrantLock();
 
-    private String dataPath = "server-data.json";
-    void setDataPath(String p){ this.dataPath = p; }
-    void saveNow(){ try { saveToDisk(this.dataPath); } catch(Exception ignored){} }
+    StorageEngine storage; // null: بدون ذخیره روی دیسک (بنچمارک‌ها و follower)
+    Replication replication; // primary با --replication-port
+    String replicaOf; // follower: آدرس primary؛ فقط action های خواندنی
+    boolean shard; // --shard: گره‌ی پشت ShardRouter؛ seed و انتشار آهنگ تازه با router است
+    ShardRouter router; // --nodes: این پروسه خودش داده ندارد و درخواست‌ها را به گره‌ها می‌فرستد
+    void sync() throws InterruptedException { if (storage != null) storage.sync(); }
 
-    void addClient(PrintWriter out){ clients.add(out); }
-    void removeClient(PrintWriter out){ clients.remove(out); }
+    void addClient(ClientSink c){ clients.add(c); }
+    void removeClient(ClientSink c){ clients.remove(c); }
 
+    // برای هر کلاینت فقط یک enqueue؛ کلاینت کند بقیه را معطل نمی‌کند
     void broadcast(Map<String, Object> event) {
-        String line = gson.toJson(event);
-        for (PrintWriter out : clients) {
-            try { out.println(line); out.flush(); } catch (Exception ignored) {}
+        Broadcast b = new Broadcast(event);
+        for (ClientSink c : clients) {
+            try { c.event(b); } catch (Exception ignored) {}
         }
     }
 
-    synchronized void addSong(Song s) {
-        songsById.put(s.id, s);
-        byCategory.computeIfAbsent(s.category, k->new CopyOnWriteArrayList<>()).add(0, s);
-        commentsBySong.putIfAbsent(s.id, new CopyOnWriteArrayList<>());
+    // زیر lock
+    private void publish(Catalog next) { catalog = next.at(catalog.version + 1); }
+
+    void announce(Song s) {
+        Map<String, Object> ev = new HashMap<>();
+        ev.put("event", "new_release");
+        ev.put("song", s);
+        broadcast(ev);
+    }
+
+    void addSong(Song s) {
+        lock.lock();
+        try { publish(catalog.withSong(s)); } finally { lock.unlock(); }
+    }
+
+    void publishSong(Song s) {
+        lock.lock();
+        try {
+            publish(catalog.withSong(s));
+            log("song", "song", s.toMap());
+        } finally { lock.unlock(); }
+    }
+
+    List<String> categories() { return new ArrayList<>(catalog.byCategory.keySet()); }
+
+    Catalog.Page songs(String category, String cursor, int limit) {
+        Catalog.Page page = storage == null ? null : storage.songs(category, cursor, limit);
+        return page != null ? page : catalog.songs(category, cursor, limit);
+    }
+
+    CommentLog.Page comments(String songId, String cursor, int limit) {
+        CommentLog.Page page = storage == null ? null : storage.comments(songId, cursor, limit);
+        return page != null ? page : catalog.commentsBySong.getOrDefault(songId, CommentLog.EMPTY).page(cursor, limit);
     }
 
-    List<String> categories() { return new ArrayList<>(byCategory.keySet()); }
+    Song makeRandomSong() { return randomSong(catalog.byCategory.keySet()); }
 
-    Song makeRandomSong() {
-        String[] cats = byCategory.keySet().isEmpty() ? new String[]{"New Releases"} : byCategory.keySet().toArray(new String[0]);
+    static Song randomSong(Collection<String> keys) {
+        String[] cats = keys.isEmpty() ? new String[]{"New Releases"} : keys.toArray(new String[0]);
         String cat = cats[new Random().nextInt(cats.length)];
         String id = UUID.randomUUID().toString();
         return new Song(
@@ -586,57 +808,67 @@ class ServerState {
         );
     }
 
-    void seedData() {
-        if (songsById.isEmpty()) {
-            addSong(new Song(UUID.randomUUID().toString(), "As It Was", "Harry Styles", "Pop", 1.29, 4.8, 5000,
+    static final String[] DEMO = {"demo", "demo@example.com", "DemoPass123"};
+
+    static List<Song> seedSongs() {
+        return List.of(
+            new Song(UUID.randomUUID().toString(), "As It Was", "Harry Styles", "Pop", 1.29, 4.8, 5000,
                 "https://picsum.photos/seed/asitwas/600/600",
-                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-11.mp3"));
-            addSong(new Song(UUID.randomUUID().toString(), "Smells Like Teen Spirit", "Nirvana", "Rock", 0.0, 4.9, 10000,
+                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-11.mp3"),
+            new Song(UUID.randomUUID().toString(), "Smells Like Teen Spirit", "Nirvana", "Rock", 0.0, 4.9, 10000,
                 "https://picsum.photos/seed/teen-spirit/600/600",
-                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-12.mp3"));
-            addSong(new Song(UUID.randomUUID().toString(), "Billie Jean", "Michael Jackson", "Classic", 1.29, 5.0, 8000,
+                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-12.mp3"),
+            new Song(UUID.randomUUID().toString(), "Billie Jean", "Michael Jackson", "Classic", 1.29, 5.0, 8000,
                 "https://picsum.photos/seed/billiejean/600/600",
-                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-13.mp3"));
-            addSong(new Song(UUID.randomUUID().toString(), "Rolling in the Deep", "Adele", "Pop", 0.99, 4.7, 7500,
+                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-13.mp3"),
+            new Song(UUID.randomUUID().toString(), "Rolling in the Deep", "Adele", "Pop", 0.99, 4.7, 7500,
                 "https://picsum.photos/seed/rolling/600/600",
-                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-14.mp3"));
-            addSong(new Song(UUID.randomUUID().toString(), "Uptown Funk", "Mark Ronson ft. Bruno Mars", "New Releases", 0.0, 4.6, 9200,
+                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-14.mp3"),
+            new Song(UUID.randomUUID().toString(), "Uptown Funk", "Mark Ronson ft. Bruno Mars", "New Releases", 0.0, 4.6, 9200,
                 "https://picsum.photos/seed/uptown/600/600",
-                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-15.mp3"));
+                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-15.mp3")
+        );
+    }
 
-            signup("demo", "demo@example.com", "DemoPass123");
+    void seedData() {
+        if (catalog.songsById.isEmpty()) {
+            for (Song s : seedSongs()) addSong(s);
+            signup(DEMO[0], DEMO[1], DEMO[2]);
             System.out.println("Seeded songs + demo user (demo/DemoPass123).");
         }
     }
 
-    synchronized Map<String,Object> signup(String u, String e, String p){
-        if (usersByName.containsKey(u) || usersByEmail.containsKey(e)) {
-            throw new RuntimeException("username or email exists");
-        }
+    Map<String,Object> signup(String u, String e, String p){
         String id = UUID.randomUUID().toString();
         User user = new User(id, u, e, p);
-        usersById.put(id, user);
-        usersByName.put(u, user);
-        usersByEmail.put(e, user);
+        lock.lock();
+        try {
+            Catalog c = catalog;
+            if (c.usersByName.containsKey(u) || c.usersByEmail.containsKey(e)) {
+                throw new RuntimeException("username or email exists");
+            }
+            publish(c.withUser(user));
+            log("user", "user", user.toJson());
+        } finally { lock.unlock(); }
         String token = UUID.randomUUID().toString();
         tokens.put(token, id);
         Map<String,Object> res = new LinkedHashMap<>();
         res.put("token", token);
-        res.put("user", user.toMap());
-        saveNow();
+        res.put("user", user);
         return res;
     }
 
-    synchronized Map<String,Object> login(String idOrMail, String p){
-        User u = usersByName.get(idOrMail);
-        if (u == null) u = usersByEmail.get(idOrMail);
+    Map<String,Object> login(String idOrMail, String p){
+        Catalog c = catalog;
+        User u = c.usersByName.get(idOrMail);
+        if (u == null) u = c.usersByEmail.get(idOrMail);
         if (u == null) throw new RuntimeException("user not found");
         if (!Objects.equals(u.password, p)) throw new RuntimeException("invalid password");
         String token = UUID.randomUUID().toString();
         tokens.put(token, u.id);
         Map<String,Object> res = new LinkedHashMap<>();
         res.put("token", token);
-        res.put("user", u.toMap());
+        res.put("user", u);
         return res;
     }
 
@@ -644,227 +876,556 @@ class ServerState {
         if (token == null) throw new RuntimeException("no token");
         String uid = tokens.get(token);
         if (uid == null) throw new RuntimeException("invalid token");
-        User u = usersById.get(uid);
+        User u = catalog.usersById.get(uid);
         if (u == null) throw new RuntimeException("invalid token");
         return u;
     }
 
-    synchronized Map<String,Object> snapshot(){
-        Map<String,Object> m = new LinkedHashMap<>();
+    // ---------- تغییرها: نسخه‌ی تازه‌ی موجودیت، انتشار، ثبت در ژورنال ----------
+    User updateProfile(String userId, String newU, String newE){
+        lock.lock();
+        try {
+            User me = catalog.usersById.get(userId).copy();
+            if (newU != null && !newU.isBlank()) me.username = newU;
+            if (newE != null && !newE.isBlank()) me.email = newE;
+            publish(catalog.withUser(me));
+            log("user", "user", me.toJson());
+            return me;
+        } finally { lock.unlock(); }
+    }
+
+    double addCredit(String userId, double amount){
+        lock.lock();
+        try {
+            User me = catalog.usersById.get(userId).copy();
+            me.credit += amount;
+            publish(catalog.withUser(me));
+            log("credit", "userId", me.id, "credit", me.credit);
+            return me.credit;
+        } finally { lock.unlock(); }
+    }
+
+    User subscribe(String userId){
+        lock.lock();
+        try {
+            User me = catalog.usersById.get(userId).copy();
+            me.premium = true;
+            publish(catalog.withUser(me));
+            log("user", "user", me.toJson());
+            return me;
+        } finally { lock.unlock(); }
+    }
+
+    double purchase(String userId, String songId){
+        lock.lock();
+        try {
+            Catalog c = catalog;
+            Song s = c.songsById.get(songId);
+            if (s == null) throw new RuntimeException("song not found");
+            User me = c.usersById.get(userId).copy();
+            if (s.price > 0 && !me.premium) {
+                if (me.credit < s.price) throw new RuntimeException("insufficient credit");
+                me.credit -= s.price;
+            }
+            me.purchased.add(songId);
+            s = s.copy();
+            s.downloads++;
+            publish(c.withUser(me).withSong(s));
+            log("purchase", "userId", me.id, "songId", songId, "credit", me.credit, "downloads", s.downloads);
+            return me.credit;
+        } finally { lock.unlock(); }
+    }
+
+    Song rate(String songId, double value){
+        lock.lock();
+        try {
+            Song s = catalog.songsById.get(songId);
+            if (s == null) throw new RuntimeException("song not found");
+            s = s.copy();
+            double total = s.ratingAverage * s.ratingCount + value;
+            s.ratingCount += 1;
+            s.ratingAverage = total / s.ratingCount;
+            publish(catalog.withSong(s));
+            log("rating", "songId", s.id, "ratingAverage", s.ratingAverage, "ratingCount", s.ratingCount);
+            return s;
+        } finally { lock.unlock(); }
+    }
+
+    void addComment(Comment c){
+        lock.lock();
+        try {
+            if (!catalog.songsById.containsKey(c.songId)) throw new RuntimeException("song not found");
+            publish(catalog.withComment(c));
+            log("comment", "comment", c.toMap());
+        } finally { lock.unlock(); }
+    }
+
+    // O(1): اندیس شناسه‌ی نظر، یک جمع اتمی روی شمارنده‌ی خود نظر و نسخه‌ی تازه بدون کپی هیچ ساختاری.
+    // قفل فقط ترتیب نسخه و ژورنال را نگه می‌دارد؛ ورودی ژورنال مقدار مطلق بعد از همین رأی را دارد
+    long vote(String commentId, boolean up){
+        lock.lock();
+        try {
+            Comment c = catalog.commentsById.get(commentId);
+            if (c == null) throw new RuntimeException("comment not found");
+            long v = c.vote(up);
+            publish(catalog);
+            log("vote", "songId", c.songId, "commentId", c.id, "likes", Comment.likes(v), "dislikes", Comment.dislikes(v));
+            return v;
+        } finally { lock.unlock(); }
+    }
+
+    // ---------- گره‌ی shard (ShardRouter) ----------
+    static final int BULK_IMPORT = 64;
+
+    // قالب نتیجه همان داده‌ی shardImport است: {"snapshot": سند JsonSnapshot, "tokens": {token: userId}}
+    Map<String,Object> exportShard(Requests.ShardExport d) {
+        Catalog c = catalog;
         List<Map<String,Object>> users = new ArrayList<>();
-        for (User u: usersById.values()) users.add(u.toJson());
-        List<Map<String,Object>> songs = new ArrayList<>();
-        for (Song s: songsById.values()) songs.add(s.toMap());
-        List<Map<String,Object>> comments = new ArrayList<>();
-        for (List<Comment> list: commentsBySong.values())
-            for (Comment c: list) comments.add(c.toMap());
-        m.put("users", users);
-        m.put("songs", songs);
-        m.put("comments", comments);
+        List<Song> songs = new ArrayList<>();
+        List<Comment> comments = new ArrayList<>();
+        Map<String,String> toks = new HashMap<>();
+        if (d.replicated()) {
+            for (User u : c.usersById.values()) users.add(u.toJson());
+            songs.addAll(c.songsOldestFirst());
+            toks.putAll(tokens);
+        } else if (!d.userIds().isEmpty()) {
+            Set<String> ids = new HashSet<>(d.userIds());
+            for (String id : ids) {
+                User u = c.usersById.get(id);
+                if (u != null) users.add(u.toJson());
+            }
+            tokens.forEach((t, uid) -> { if (ids.contains(uid)) toks.put(t, uid); });
+        }
+        for (String id : d.songIds()) {
+            Song s = c.songsById.get(id);
+            if (s == null) continue;
+            if (!d.replicated()) songs.add(s);
+            comments.addAll(c.commentsBySong.getOrDefault(id, CommentLog.EMPTY));
+        }
+        Map<String,Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("version", c.version);
+        snapshot.put("users", users);
+        snapshot.put("songs", songs);
+        snapshot.put("comments", comments);
+        snapshot.put("journalSeq", 0);
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("snapshot", snapshot);
+        m.put("tokens", toks);
         return m;
     }
 
-    synchronized void saveToDisk(String path){
-        try (Writer w = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)) {
-            gson.toJson(snapshot(), w);
-        } catch(Exception e){ e.printStackTrace(); }
+    // موجودیت‌ها جایگزین یا اضافه می‌شوند (مقدار گره‌ی مبدأ برنده است) و کل import یک نسخه و یک ورودی ژورنال است.
+    // import بزرگ (rebalance) یک بار با Builder ساخته می‌شود تا هزینه O(n) بماند نه O(n) برای هر موجودیت
+    Map<String,Object> importShard(Requests.ShardImport d) {
+        Catalog.Part p = d.snapshot();
+        int n = p.users().size() + p.songs().size() + p.comments().size();
+        List<Song> released = new ArrayList<>();
+        lock.lock();
+        try {
+            tokens.putAll(d.tokens());
+            if (n > 0) {
+                Catalog c = catalog;
+                if (d.release()) for (Song s : p.songs()) if (!c.songsById.containsKey(s.id)) released.add(s);
+                Catalog next;
+                if (n <= BULK_IMPORT) {
+                    Catalog.Editor ed = new Catalog.Editor(c);
+                    for (User u : p.users()) ed.putUser(u);
+                    for (Song s : p.songs()) ed.putSong(s);
+                    for (Comment cm : p.comments()) ed.putComment(cm);
+                    next = ed.catalog;
+                } else {
+                    Catalog.Builder b = new Catalog.Builder();
+                    b.putAll(List.of(c.part(), p));
+                    b.version = c.version;
+                    next = b.build();
+                }
+                publish(next);
+                List<Object> users = new ArrayList<>(), songs = new ArrayList<>(), comments = new ArrayList<>();
+                for (User u : p.users()) users.add(u.toJson());
+                for (Song s : p.songs()) songs.add(s.toMap());
+                for (Comment cm : p.comments()) comments.add(cm.toMap());
+                log("import", "users", users, "songs", songs, "comments", comments);
+            }
+        } finally { lock.unlock(); }
+        for (Song s : released) announce(s);
+        return Map.of("users", p.users().size(), "songs", p.songs().size(), "comments", p.comments().size());
+    }
+
+    // ---------- ذخیره ----------
+    // هنگام بارگذاری پیش از شروع سرور، یا زیر lock وقتی follower دوباره از snapshot همگام می‌شود
+    void install(Catalog c){ catalog = c; }
+
+    // ---------- ژورنال ----------
+    // هر ورودی مقدار نهایی فیلدها و نسخه‌ی کاتالوگ را دارد؛ زیر lock و بلافاصله بعد از publish صدا زده
+    // می‌شود، پس ترتیب ژورنال همان ترتیب نسخه‌هاست
+    void log(Object... kv) {
+        if (storage == null && replication == null) return;
+        Map<String,Object> e = new LinkedHashMap<>();
+        e.put("op", kv[0]);
+        e.put("v", catalog.version);
+        for (int i = 1; i + 1 < kv.length; i += 2) e.put((String) kv[i], kv[i + 1]);
+        if (storage != null) storage.append(e);
+        if (replication != null) replication.publish(e);
+    }
+
+    // follower: یک ورودی جریان primary روی نسخه‌ی منتشرشده؛ آهنگ تازه مثل primary به کلاینت‌ها اعلام می‌شود
+    void replicate(Map<String,Object> e) {
+        String songId = "song".equals(e.get("op")) ? (String) ((Map<?,?>) e.get("song")).get("id") : null;
+        Song released = null;
+        lock.lock();
+        try {
+            Catalog before = catalog;
+            Catalog.Editor ed = new Catalog.Editor(before);
+            apply(ed, e);
+            catalog = ed.catalog;
+            if (songId != null && !before.songsById.containsKey(songId)) released = catalog.songsById.get(songId);
+        } finally { lock.unlock(); }
+        if (released != null) announce(released);
     }
 
+    // replay یک ورودی ژورنال؛ ورودی‌هایی که snapshot از قبل دارد (v <= نسخه‌ی آن) رد می‌شوند و اجرای
+    // دوباره‌ی بقیه هم بی‌ضرر است چون مقدار نهایی دارند
     @SuppressWarnings("unchecked")
-    synchronized boolean loadFromDisk(String path){
-        File f = new File(path);
-        if (!f.exists()) return false;
-        try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
-            Map<String,Object> m = gson.fromJson(r, Map.class);
-            List<Map<String,Object>> users = (List<Map<String,Object>>) m.getOrDefault("users", List.of());
-            List<Map<String,Object>> songs = (List<Map<String,Object>>) m.getOrDefault("songs", List.of());
-            List<Map<String,Object>> comments = (List<Map<String,Object>>) m.getOrDefault("comments", List.of());
-
-            usersById.clear(); usersByName.clear(); usersByEmail.clear();
-            for (Map<String,Object> ju : users){
-                User u = User.fromJson(ju);
-                usersById.put(u.id, u);
-                usersByName.put(u.username, u);
-                usersByEmail.put(u.email, u);
+    static void apply(Catalog.Target b, Map<String,Object> e){
+        long v = e.get("v") instanceof Number n ? n.longValue() : -1;
+        if (v >= 0 && v <= b.version()) return;
+        switch ((String) e.get("op")) {
+            case "user" -> b.putUser(User.fromJson((Map<?,?>) e.get("user")));
+            case "credit" -> {
+                User u = b.user((String) e.get("userId"));
+                if (u != null) {
+                    u = u.copy();
+                    u.credit = ((Number) e.get("credit")).doubleValue();
+                    b.putUser(u);
+                }
+            }
+            case "purchase" -> {
+                User u = b.user((String) e.get("userId"));
+                if (u != null) {
+                    u = u.copy();
+                    u.credit = ((Number) e.get("credit")).doubleValue();
+                    u.purchased.add((String) e.get("songId"));
+                    b.putUser(u);
+                }
+                Song s = b.song((String) e.get("songId"));
+                if (s != null) {
+                    s = s.copy();
+                    s.downloads = ((Number) e.get("downloads")).intValue();
+                    b.putSong(s);
+                }
+            }
+            case "rating" -> {
+                Song s = b.song((String) e.get("songId"));
+                if (s != null) {
+                    s = s.copy();
+                    s.ratingAverage = ((Number) e.get("ratingAverage")).doubleValue();
+                    s.ratingCount = ((Number) e.get("ratingCount")).intValue();
+                    b.putSong(s);
+                }
+            }
+            case "song" -> {
+                Song s = Song.fromMap((Map<String,Object>) e.get("song"));
+                if (b.song(s.id) == null) b.putSong(s);
             }
-            songsById.clear(); byCategory.clear(); commentsBySong.clear();
-            for (Map<String,Object> js : songs){
-                Song s = Song.fromMap(js);
-                addSong(s);
+            case "comment" -> b.putComment(Comment.fromMap((Map<?,?>) e.get("comment")));
+            case "import" -> {
+                for (Object u : (List<?>) e.get("users")) b.putUser(User.fromJson((Map<?,?>) u));
+                for (Object s : (List<?>) e.get("songs")) b.putSong(Song.fromMap((Map<String,Object>) s));
+                for (Object c : (List<?>) e.get("comments")) b.putComment(Comment.fromMap((Map<?,?>) c));
             }
-            for (Map<String,Object> jc : comments){
-                Comment c = Comment.fromMap(jc);
-                commentsBySong.computeIfAbsent(c.songId, k->new CopyOnWriteArrayList<>()).add(c);
+            case "vote" -> {
+                Comment c = b.comment((String) e.get("commentId"));
+                if (c != null) c.votes(((Number) e.get("likes")).intValue(), ((Number) e.get("dislikes")).intValue());
             }
-            return true;
-        } catch(Exception e){ e.printStackTrace(); return false; }
+            default -> throw new IllegalArgumentException("unknown journal op: " + e.get("op"));
+        }
+        if (v >= 0) b.version(v);
     }
 
-    boolean hasAnyData(){ return !songsById.isEmpty() || !usersById.isEmpty(); }
+    boolean hasAnyData(){ Catalog c = catalog; return !c.songsById.isEmpty() || !c.usersById.isEmpty(); }
 }
 
 // ====== هندلر کلاینت ======
-class ClientHandler extends Thread {
+// مقصد خطوط خروجی (پاسخ‌ها و رویدادها) برای یک اتصال
+interface ClientSink {
+    void send(Response r);
+
+    void event(Broadcast b);
+}
+
+record Response(String reqId, boolean ok, Object result, String error) {}
+
+// یک رویداد broadcast؛ هر encoding فقط یک بار ساخته می‌شود و بین همه‌ی کلاینت‌ها مشترک است.
+// key کلید coalesce در Outbox است: نوع رویداد و شناسه‌ی موجودیتش، تا فقط نسخه‌ی قدیمی‌ترِ همان موجودیت جایگزین شود
+final class Broadcast {
+    final String key;
+    private final Map<String, Object> event;
+    private byte[] json, binary;
+
+    Broadcast(Map<String, Object> event) {
+        this.event = event;
+        Object song = event.get("song");
+        Object id = song instanceof Song s ? s.id : song instanceof Map<?,?> m ? m.get("id") : null;
+        this.key = event.get("event") + (id == null ? "" : ":" + id);
+    }
+
+    synchronized byte[] json() {
+        if (json == null) json = JsonCodec.event(event);
+        return json;
+    }
+
+    synchronized byte[] binary() {
+        if (binary == null) binary = BinaryCodec.event(event);
+        return binary;
+    }
+}
+
+class ClientHandler implements Runnable, ClientSink {
     private final Socket sock;
     private final ServerState state;
-    private final Gson gson = new Gson();
-    private PrintWriter out;
+    private final ActionHandler actions;
+    private final Executor workers;
+    private final Outbox outbox;
+    private volatile boolean binary = false;
 
-    ClientHandler(Socket s, ServerState st){ this.sock=s; this.state=st; }
+    ClientHandler(Socket s, ServerState st, Executor workers){
+        this.sock=s; this.state=st; this.actions=new ActionHandler(st); this.workers=workers;
+        this.outbox = new Outbox(st.outboxCapacity, st.slowConsumer, null);
+    }
 
     public void run(){
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(sock.getInputStream(),"UTF-8"))) {
-            out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(),"UTF-8"), true);
-            state.addClient(out);
-            String line;
-            while ((line = br.readLine()) != null) {
-                try {
-                    handle(line);
-                } catch (Exception ex) {
-                    // ignore
-                }
-            }
+        state.connections.incrementAndGet();
+        try (InputStream in = new BufferedInputStream(sock.getInputStream())) {
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            // writer همیشه virtual است تا حالت thread برای هر اتصال فقط یک thread سکو داشته باشد
+            Thread writer = Thread.ofVirtual().name(Thread.currentThread().getName() + "-writer").start(() -> drain(out));
+            RequestPipeline pipeline = new RequestPipeline(actions, workers, this, null, null);
+            // پروتکل از اولین بایت معلوم می‌شود؛ رویدادها بعد از آن فرستاده می‌شوند
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first == (BinaryCodec.MAGIC[0] & 0xFF)) readFrames(new DataInputStream(in), pipeline);
+            else if (first >= 0) readLines(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), pipeline);
+            // کلاینت نیمه‌بسته: پاسخ‌های در راه را هنوز تحویل بده
+            pipeline.awaitIdle();
+            outbox.finish();
+            writer.join(10_000);
         } catch (Exception ignored) {
         } finally {
-            if (out != null) state.removeClient(out);
+            state.removeClient(this);
+            state.connections.decrementAndGet();
+            outbox.close();
             try { sock.close(); } catch (Exception ignored) {}
         }
     }
 
-    private void handle(String line) {
-        Map<?,?> m = gson.fromJson(line, Map.class);
-        String reqId = (String) m.get("reqId");
-        String action = (String) m.get("action");
-        String token = (String) m.get("token");
-        Map<?,?> data = (Map<?,?>) m.get("data");
+    private void readLines(BufferedReader br, RequestPipeline pipeline) throws IOException, InterruptedException {
+        state.addClient(this);
+        String line;
+        while ((line = br.readLine()) != null) {
+            Request r;
+            try { r = Requests.parse(line); } catch (Exception ex) { continue; } // خط خراب بدون reqId پاسخی ندارد
+            if (!pipeline.submit(r)) pipeline.awaitCapacity();
+        }
+    }
+
+    private void readFrames(DataInputStream in, RequestPipeline pipeline) throws IOException, InterruptedException {
+        if (!Arrays.equals(in.readNBytes(BinaryCodec.MAGIC.length), BinaryCodec.MAGIC)) return;
+        binary = true;
+        outbox.response(BinaryCodec.MAGIC.clone());
+        state.addClient(this);
+        while (true) {
+            int len;
+            try { len = in.readInt(); } catch (EOFException e) { return; }
+            if (len < 1 || len > BinaryCodec.MAX_FRAME) throw new IOException("bad frame length: " + len);
+            byte[] payload = in.readNBytes(len);
+            if (payload.length < len) return;
+            Request r;
+            try { r = BinaryCodec.decodeRequest(payload, 0, len); } catch (RuntimeException ex) { continue; }
+            if (!pipeline.submit(r)) pipeline.awaitCapacity();
+        }
+    }
 
-        Map<String,Object> result = new LinkedHashMap<>();
+    // writer اختصاصی: هرچه در صف هست را می‌نویسد و فقط وقتی صف خالی شد flush می‌کند
+    private void drain(OutputStream out) {
         try {
-            Object res = switch (action) {
-                case "signup" -> {
-                    String u = (String) data.get("username");
-                    String e = (String) data.get("email");
-                    String p = (String) data.get("password");
-                    yield state.signup(u, e, p);
-                }
-                case "login" -> {
-                    String u = (String) data.get("userOrEmail");
-                    String p = (String) data.get("password");
-                    yield state.login(u, p);
-                }
-                case "me" -> {
-                    User me = state.authed(token);
-                    yield me.toMap();
-                }
-                case "updateProfile" -> {
-                    User me = state.authed(token);
-                    String newU = data != null ? (String) data.get("username") : null;
-                    String newE = data != null ? (String) data.get("email") : null;
-                    synchronized (state) {
-                        if (newU != null && !newU.isBlank()) {
-                            state.usersByName.remove(me.username);
-                            me.username = newU;
-                            state.usersByName.put(me.username, me);
-                        }
-                        if (newE != null && !newE.isBlank()) {
-                            state.usersByEmail.remove(me.email);
-                            me.email = newE;
-                            state.usersByEmail.put(me.email, me);
-                        }
-                    }
-                    state.saveNow();
-                    yield me.toMap();
-                }
-                case "addCredit" -> {
-                    User me = state.authed(token);
-                    double amount = ((Number) data.get("amount")).doubleValue();
-                    me.credit += amount;
-                    state.saveNow();
-                    yield Map.of("credit", me.credit);
-                }
-                case "subscription" -> {
-                    User me = state.authed(token);
-                    String plan = (String) data.get("plan");
-                    me.premium = true;
-                    state.saveNow();
-                    yield Map.of("subscription", me.premium ? "premium" : "standard");
-                }
-                case "purchase" -> {
-                    User me = state.authed(token);
-                    String songId = (String) data.get("songId");
-                    Song s = state.songsById.get(songId);
-                    if (s == null) throw new RuntimeException("song not found");
-                    if (s.price > 0 && !me.premium) {
-                        if (me.credit < s.price) throw new RuntimeException("insufficient credit");
-                        me.credit -= s.price;
-                    }
-                    me.purchased.add(songId);
-                    s.downloads++;
-                    state.saveNow();
-                    yield Map.of("ok", true, "credit", me.credit);
-                }
-                case "categories" -> state.categories();
-                case "songs" -> {
-                    String cat = (String) data.get("category");
-                    List<Song> list = state.byCategory.getOrDefault(cat, List.of());
-                    List<Map<String,Object>> mapped = new ArrayList<>();
-                    for (Song s : list) mapped.add(s.toMap());
-                    yield mapped;
-                }
-                case "rate" -> {
-                    String songId = (String) data.get("songId");
-                    double value = ((Number) data.get("value")).doubleValue();
-                    Song s = state.songsById.get(songId);
-                    if (s == null) throw new RuntimeException("song not found");
-                    synchronized (s) {
-                        double total = s.ratingAverage * s.ratingCount + value;
-                        s.ratingCount += 1;
-                        s.ratingAverage = total / s.ratingCount;
-                    }
-                    state.saveNow();
-                    yield Map.of("ratingAverage", s.ratingAverage, "ratingCount", s.ratingCount);
-                }
-                case "comments" -> {
-                    String songId = (String) data.get("songId");
-                    List<Comment> list = state.commentsBySong.getOrDefault(songId, List.of());
-                    List<Map<String,Object>> mapped = new ArrayList<>();
-                    for (Comment c : list) mapped.add(c.toMap());
-                    yield mapped;
-                }
-                case "addComment" -> {
-                    User me = state.authed(token);
-                    String songId = (String) data.get("songId");
-                    String text = (String) data.get("text");
-                    Comment c = new Comment(UUID.randomUUID().toString(), songId, me.username, text);
-                    state.commentsBySong.computeIfAbsent(songId, k->new CopyOnWriteArrayList<>()).add(c);
-                    state.saveNow();
-                    yield c.toMap();
-                }
-                case "likeComment" -> {
-                    String cid = (String) data.get("commentId");
-                    boolean up = Boolean.TRUE.equals(data.get("up"));
-                    for (List<Comment> list : state.commentsBySong.values()) {
-                        for (Comment c : list) {
-                            if (c.id.equals(cid)) {
-                                if (up) c.likes++; else c.dislikes++;
-                                state.saveNow();
-                                yield Map.of("likes", c.likes, "dislikes", c.dislikes);
-                            }
-                        }
-                    }
-                    throw new RuntimeException("comment not found");
-                }
-                default -> throw new RuntimeException("unknown action: " + action);
-            };
-            result.put("reqId", reqId);
-            result.put("ok", true);
-            result.put("result", res);
+            byte[] b;
+            while ((b = outbox.take()) != null) {
+                out.write(b);
+                while ((b = outbox.poll()) != null) out.write(b);
+                out.flush();
+            }
+        } catch (Exception ignored) {
+            try { sock.close(); } catch (Exception ignored2) {}
+        }
+    }
+
+    @Override
+    public void send(Response r) {
+        outbox.response(binary ? BinaryCodec.encode(r) : JsonCodec.encode(r));
+    }
+
+    @Override
+    public void event(Broadcast b) {
+        if (!outbox.event(b.key, binary ? b.binary() : b.json())) {
+            try { sock.close(); } catch (Exception ignored) {}
+        }
+    }
+}
+
+// ====== اجرای action ها (مشترک بین حالت thread و nio) ======
+class ActionHandler {
+    static final int MAX_BATCH = 100;
+
+    private final ServerState state;
+
+    ActionHandler(ServerState st){ this.state=st; }
+
+    // یک درخواست (JSON یا دودویی، decode شده) را اجرا می‌کند
+    Response execute(Request r) {
+        try {
+            Object result = run(r.action(), r.token(), r.data());
+            if (r.sync()) state.sync(); // پاسخ بعد از روی دیسک رفتن تغییر
+            return new Response(r.reqId(), true, result, null);
         } catch (Exception ex) {
-            result.put("reqId", reqId);
-            result.put("ok", false);
-            result.put("error", ex.getMessage());
+            return new Response(r.reqId(), false, null, ex.getMessage());
         }
-        out.println(gson.toJson(result));
-        out.flush();
+    }
+
+    private Object run(String action, String token, Object data) {
+        if (data instanceof Requests.Invalid bad) throw new RuntimeException(bad.message());
+        if (action == null) throw new RuntimeException("missing action");
+        // router: batch همین‌جا به زیردرخواست‌ها شکسته می‌شود و هر کدام جدا به گره(های) خودش می‌رود
+        if (state.router != null && !action.equals("batch")) return state.router.route(action, token, data);
+        // روی follower: توکن‌ها محلی‌اند پس login مجاز است؛ زیردرخواست‌های batch هر کدام جدا بررسی می‌شوند
+        if (state.replicaOf != null && !RequestPipeline.isReadAction(action) && !action.equals("login") && !action.equals("batch")) {
+            throw new RuntimeException("read-only replica of " + state.replicaOf + ": send " + action + " to the primary");
+        }
+        return switch (action) {
+            case "signup" -> {
+                Requests.Signup d = data(data, Requests.Signup.class);
+                yield state.signup(d.username(), d.email(), d.password());
+            }
+            case "login" -> {
+                Requests.Login d = data(data, Requests.Login.class);
+                yield state.login(d.userOrEmail(), d.password());
+            }
+            case "me" -> {
+                User me = state.authed(token);
+                yield me;
+            }
+            case "updateProfile" -> {
+                User me = state.authed(token);
+                Requests.UpdateProfile d = data instanceof Requests.UpdateProfile u ? u : new Requests.UpdateProfile(null, null);
+                yield state.updateProfile(me.id, d.username(), d.email());
+            }
+            case "addCredit" -> {
+                User me = state.authed(token);
+                double amount = data(data, Requests.AddCredit.class).amount();
+                yield Map.of("credit", state.addCredit(me.id, amount));
+            }
+            case "subscription" -> {
+                User me = state.subscribe(state.authed(token).id);
+                yield Map.of("subscription", me.premium ? "premium" : "standard");
+            }
+            case "purchase" -> {
+                User me = state.authed(token);
+                String songId = data(data, Requests.Purchase.class).songId();
+                yield Map.of("ok", true, "credit", state.purchase(me.id, songId));
+            }
+            case "categories" -> state.categories();
+            // فهرست‌های کاتالوگ تغییرناپذیرند و بدون کپی برگردانده می‌شوند
+            // با limit صفحه‌ای از دسته: {"songs": [...], "next": cursor یا null}
+            case "songs" -> {
+                Requests.Songs d = data(data, Requests.Songs.class);
+                if (d.limit() == 0) yield state.catalog.byCategory.getOrDefault(d.category(), SongIndex.EMPTY);
+                Catalog.Page page = state.songs(d.category(), d.cursor(), d.limit());
+                Map<String,Object> m = new LinkedHashMap<>();
+                m.put("songs", page.songs());
+                m.put("next", page.next());
+                yield m;
+            }
+            case "rate" -> {
+                Requests.Rate d = data(data, Requests.Rate.class);
+                Song s = state.rate(d.songId(), d.value());
+                yield Map.of("ratingAverage", s.ratingAverage, "ratingCount", s.ratingCount);
+            }
+            case "comments" -> {
+                Requests.Comments d = data(data, Requests.Comments.class);
+                if (d.limit() == 0) yield state.catalog.commentsBySong.getOrDefault(d.songId(), CommentLog.EMPTY);
+                CommentLog.Page page = state.comments(d.songId(), d.cursor(), d.limit());
+                Map<String,Object> m = new LinkedHashMap<>();
+                m.put("comments", page.comments());
+                m.put("next", page.next());
+                yield m;
+            }
+            case "addComment" -> {
+                User me = state.authed(token);
+                Requests.AddComment d = data(data, Requests.AddComment.class);
+                Comment c = new Comment(UUID.randomUUID().toString(), d.songId(), me.username, d.text());
+                state.addComment(c);
+                yield c;
+            }
+            case "likeComment" -> {
+                Requests.LikeComment d = data(data, Requests.LikeComment.class);
+                long v = state.vote(d.commentId(), d.up());
+                yield Map.of("likes", Comment.likes(v), "dislikes", Comment.dislikes(v));
+            }
+            case "batch" -> batch(token, data(data, Requests.Batch.class).requests());
+            // فقط برای router؛ گره‌های --shard نباید مستقیم در دسترس کلاینت‌ها باشند (export گذرواژه‌ها را هم دارد)
+            case "shardExport", "shardImport" -> {
+                if (!state.shard) throw new RuntimeException("unknown action: " + action);
+                yield action.equals("shardExport") ? state.exportShard(data(data, Requests.ShardExport.class))
+                        : state.importShard(data(data, Requests.ShardImport.class));
+            }
+            default -> throw new RuntimeException("unknown action: " + action);
+        };
+    }
+
+    // چند درخواست در یک رفت و برگشت. درخواست‌های خواندنیِ پشت سر هم موازی اجرا می‌شوند و هر درخواست
+    // تغییردهنده مرز است: بعد از تمام شدن خواندنی‌های قبلی و پیش از خواندنی‌های بعدی اجرا می‌شود.
+    private List<Object> batch(String token, List<Request> requests) {
+        Object[] results = new Object[requests.size()];
+        List<ForkJoinTask<?>> reads = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            int idx = i;
+            Request sub = requests.get(i);
+            String action = sub.action();
+            String tok = sub.token() != null ? sub.token() : token;
+            Object d = sub.data();
+            if (RequestPipeline.isReadAction(action)) {
+                reads.add(ForkJoinPool.commonPool().submit(() -> { results[idx] = subResult(action, tok, d); }));
+            } else {
+                for (ForkJoinTask<?> t : reads) t.join();
+                reads.clear();
+                results[idx] = subResult(action, tok, d);
+            }
+        }
+        for (ForkJoinTask<?> t : reads) t.join();
+        return Arrays.asList(results);
+    }
+
+    private Map<String,Object> subResult(String action, String token, Object data) {
+        Map<String,Object> r = new LinkedHashMap<>();
+        try {
+            if ("batch".equals(action)) throw new RuntimeException("nested batch");
+            Object res = run(action, token, data);
+            r.put("ok", true);
+            r.put("result", res);
+        } catch (Exception ex) {
+            r.put("ok", false);
+            r.put("error", ex.getMessage());
+        }
+        return r;
+    }
+
+    // data ای که decoder برای این action ساخته؛ null یعنی کلاینت data نفرستاده
+    private static <T> T data(Object data, Class<T> type) {
+        if (!type.isInstance(data)) throw new RuntimeException("missing data");
+        return type.cast(data);
+    }
+
+    static String actionName(int id) {
+        return id > 0 && id < BinaryCodec.ACTIONS.length ? BinaryCodec.ACTIONS[id] : "#" + id;
     }
 }
@@ -0,0 +1,137 @@
+package org.example;
+
+import java.util.*;
+
+// ====== اندیس زمانی آهنگ‌های یک دسته ======
+// درخت AVL تغییرناپذیر به ترتیب Catalog.NEWEST_FIRST که هر گره اندازه‌ی زیردرختش را دارد. with() فقط
+// مسیر ریشه تا محل درج را کپی می‌کند (O(log n)) و بقیه‌ی درخت با نسخه‌ی قبل شریک است، پس مثل بقیه‌ی
+// Catalog بدون قفل خوانده می‌شود. rank یک کلید و رسیدن به i امین آهنگ هم O(log n) است و پیمایش ترتیبی
+// با یک پشته انجام می‌شود. خودش یک List فقط‌خواندنی است تا songs بدون کپی برگردانده شود.
+final class SongIndex extends AbstractList<Song> {
+    static final SongIndex EMPTY = new SongIndex(null);
+
+    private static final class Node {
+        final Song song;
+        final Node left, right;
+        final int size, height;
+
+        Node(Song song, Node left, Node right) {
+            this.song = song;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    private final Node root;
+
+    private SongIndex(Node root) { this.root = root; }
+
+    // از فهرستی که از قبل به ترتیب NEWEST_FIRST مرتب است، در O(n)
+    static SongIndex of(List<Song> sorted) {
+        return new SongIndex(build(sorted, 0, sorted.size()));
+    }
+
+    private static Node build(List<Song> l, int from, int to) {
+        if (from >= to) return null;
+        int mid = (from + to) >>> 1;
+        return new Node(l.get(mid), build(l, from, mid), build(l, mid + 1, to));
+    }
+
+    @Override
+    public int size() { return size(root); }
+
+    int height() { return height(root); }
+
+    @Override
+    public Song get(int i) {
+        Objects.checkIndex(i, size());
+        Node n = root;
+        while (true) {
+            int l = size(n.left);
+            if (i < l) n = n.left;
+            else if (i == l) return n.song;
+            else { i -= l + 1; n = n.right; }
+        }
+    }
+
+    // آهنگ تازه سر جای مرتبش؛ آهنگ با همان کلید (addedAt, id) جایگزین می‌شود
+    SongIndex with(Song s) {
+        return new SongIndex(insert(root, s));
+    }
+
+    private static Node insert(Node n, Song s) {
+        if (n == null) return new Node(s, null, null);
+        int c = Catalog.NEWEST_FIRST.compare(s, n.song);
+        if (c == 0) return new Node(s, n.left, n.right);
+        if (c < 0) return balance(n.song, insert(n.left, s), n.right);
+        return balance(n.song, n.left, insert(n.right, s));
+    }
+
+    private static Node balance(Song s, Node l, Node r) {
+        int hl = height(l), hr = height(r);
+        if (hl > hr + 1) {
+            if (height(l.left) >= height(l.right)) return new Node(l.song, l.left, new Node(s, l.right, r));
+            return new Node(l.right.song, new Node(l.song, l.left, l.right.left), new Node(s, l.right.right, r));
+        }
+        if (hr > hl + 1) {
+            if (height(r.right) >= height(r.left)) return new Node(r.song, new Node(s, l, r.left), r.right);
+            return new Node(r.left.song, new Node(s, l, r.left.left), new Node(r.song, r.left.right, r.right));
+        }
+        return new Node(s, l, r);
+    }
+
+    // اندیس اولین آهنگی که در ترتیب NEWEST_FIRST بعد از کلید (addedAt, id) می‌آید
+    int after(long addedAt, String id) {
+        int rank = 0;
+        Node n = root;
+        while (n != null) {
+            long t = n.song.addedAt;
+            if (t > addedAt || (t == addedAt && n.song.id.compareTo(id) >= 0)) {
+                rank += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return rank;
+    }
+
+    // آهنگ‌های [from, to) در O(log n + k)
+    List<Song> range(int from, int to) {
+        List<Song> out = new ArrayList<>(Math.max(0, to - from));
+        Iterator<Song> it = iterator(from);
+        for (int i = from; i < to && it.hasNext(); i++) out.add(it.next());
+        return out;
+    }
+
+    @Override
+    public Iterator<Song> iterator() { return iterator(0); }
+
+    private Iterator<Song> iterator(int from) {
+        Deque<Node> stack = new ArrayDeque<>();
+        Node n = root;
+        // پایین رفتن تا from امین گره؛ گره‌هایی که بعد از آن می‌آیند در پشته می‌مانند
+        while (n != null) {
+            int l = size(n.left);
+            if (from < l) { stack.push(n); n = n.left; }
+            else if (from == l) { stack.push(n); break; }
+            else { from -= l + 1; n = n.right; }
+        }
+        return new Iterator<>() {
+            @Override public boolean hasNext() { return !stack.isEmpty(); }
+
+            @Override public Song next() {
+                if (stack.isEmpty()) throw new NoSuchElementException();
+                Node cur = stack.pop();
+                for (Node x = cur.right; x != null; x = x.left) stack.push(x);
+                return cur.song;
+            }
+        };
+    }
+
+    private static int size(Node n) { return n == null ? 0 : n.size; }
+
+    private static int height(Node n) { return n == null ? 0 : n.height; }
+}
@@ -0,0 +1,276 @@
+package org.example;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ====== موتور ذخیره‌ی SQLite ======
+// group commit: ورودی‌ها در حافظه جمع می‌شوند و thread نویسنده هر commitMs (یا بلافاصله برای sync) همه را
+// در یک تراکنش می‌نویسد، پس یک انفجار like یا rate یک fsync هزینه دارد نه هزار تا. چون هر ورودی مقدار
+// نهایی دارد، چند rating یک آهنگ یا چند vote یک نظر در یک دور به آخرین‌شان خلاصه می‌شوند.
+// بعد از crash حداکثر تغییرهای همین چند میلی‌ثانیه‌ی آخر گم می‌شوند؛ درخواست sync تا commit صبر می‌کند.
+// ورودی‌ای که نوشته نشد دور ریخته نمی‌شود: خودش و هر چه بعدش آمده در دور بعد دوباره نوشته می‌شوند (ترتیب
+// حفظ می‌شود چون مقدارها مطلق‌اند) و تا نوشته نشده هر sync با خطا برمی‌گردد.
+// بارگذاری کل جدول‌ها را یکجا در یک Catalog می‌ریزد.
+class SqliteStorage implements StorageEngine {
+    private final ServerState state;
+    private final Database db;
+    private final long commitMs;
+    private final ScheduledExecutorService committer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("sqlite-commit").daemon(true).factory());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+    // زیر lock
+    private List<Map<String,Object>> pending = new ArrayList<>();
+    private long appended = 0, attempted = 0, saved = 0;
+    // فقط thread نویسنده: شماره‌ی ورودی‌ای که آخرین بار نوشته نشد، تا خطای تکراری هر دور چاپ نشود
+    private long failing = -1;
+
+    SqliteStorage(ServerState state, Database db, long commitMs) {
+        this.state = state;
+        this.db = db;
+        this.commitMs = commitMs;
+    }
+
+    @Override
+    public boolean load() {
+        Catalog.Builder b = new Catalog.Builder();
+        try {
+            db.initSchemaIfNeeded();
+            for (User u : db.listUsers()) b.putUser(u);
+            for (Map<String,Object> m : db.listSongs()) b.putSong(Song.fromMap(m));
+            for (Map<String,Object> m : db.listComments()) b.putComment(Comment.fromMap(m));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+        state.install(b.build());
+        return !b.usersById.isEmpty() || !b.songsById.isEmpty();
+    }
+
+    // جدول‌ها با نسخه‌ی منتشرشده‌ی فعلی جایگزین می‌شوند، در یک تراکنش و با addBatch
+    @Override
+    public void checkpoint() throws IOException {
+        Catalog c = state.catalog;
+        List<Song> songs = c.songsOldestFirst();
+        List<Comment> comments = new ArrayList<>();
+        for (List<Comment> list : c.commentsBySong.values()) comments.addAll(list);
+        try {
+            db.initSchemaIfNeeded();
+            db.transaction(() -> {
+                db.deleteAll();
+                db.insertUsers(c.usersById.values());
+                db.insertSongs(songs);
+                db.insertComments(comments);
+            });
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void start() {
+        committer.scheduleWithFixedDelay(this::commit, commitMs, commitMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void append(Map<String,Object> e) {
+        lock.lock();
+        try {
+            pending.add(e);
+            appended++;
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void sync() throws InterruptedException {
+        if (!commitNow()) throw new IllegalStateException("save failed");
+    }
+
+    // همه‌ی ورودی‌های تا این لحظه را commit می‌کند؛ false یعنی دست‌کم یکی هنوز نوشته نشده
+    private boolean commitNow() throws InterruptedException {
+        long gen;
+        lock.lock();
+        try {
+            gen = appended;
+            if (saved >= gen) return true;
+        } finally { lock.unlock(); }
+        committer.execute(this::commit);
+        lock.lock();
+        try {
+            while (attempted < gen) committed.await();
+            return saved >= gen;
+        } finally { lock.unlock(); }
+    }
+
+    // فقط thread نویسنده
+    private void commit() {
+        List<Map<String,Object>> batch;
+        long from, gen;
+        lock.lock();
+        try {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<>();
+            from = saved;
+            gen = appended;
+        } finally { lock.unlock(); }
+        int done = batch.size();
+        try {
+            db.transaction(() -> write(batch));
+        } catch (SQLException | RuntimeException e) {
+            // ورودی‌های پیش از خراب‌ها نگه داشته شوند: تک‌تک و هر کدام در تراکنش خودش، تا اولین خطا
+            done = 0;
+            for (Map<String,Object> entry : batch) {
+                try {
+                    db.transaction(() -> write(List.of(entry)));
+                    done++;
+                } catch (SQLException | RuntimeException ex) {
+                    if (failing != from + done) System.err.println("sqlite: " + entry.get("op") + " entry failed, retrying: " + ex.getMessage());
+                    failing = from + done;
+                    break;
+                }
+            }
+        }
+        lock.lock();
+        try {
+            attempted = gen;
+            saved = from + done;
+            if (done < batch.size()) {
+                List<Map<String,Object>> retry = new ArrayList<>(batch.subList(done, batch.size()));
+                retry.addAll(pending);
+                pending = retry;
+            }
+            committed.signalAll();
+        } finally { lock.unlock(); }
+    }
+
+    // ترتیب: آهنگ‌های تازه، import ها (ShardRouter)، تغییرهای کاربر (به همان ترتیب، چون credit مطلق است)، دانلودها،
+    // امتیازها، نظرهای تازه، رأی‌ها. دانلودها، امتیازها و رأی‌ها مقدار نهایی‌اند، پس هر کدام یک batch با آخرین مقدار هر ردیف است.
+    @SuppressWarnings("unchecked")
+    private void write(List<Map<String,Object>> batch) throws SQLException {
+        List<Song> songs = new ArrayList<>();
+        List<Map<String,Object>> users = new ArrayList<>();
+        Map<String, double[]> ratings = new LinkedHashMap<>();
+        Map<String, Integer> downloads = new LinkedHashMap<>();
+        List<Comment> comments = new ArrayList<>();
+        Map<String, int[]> votes = new LinkedHashMap<>();
+        List<Map<String,Object>> imports = new ArrayList<>();
+        for (Map<String,Object> e : batch) {
+            switch ((String) e.get("op")) {
+                case "song" -> songs.add(Song.fromMap((Map<String,Object>) e.get("song")));
+                case "user", "credit", "purchase" -> users.add(e);
+                case "rating" -> ratings.put((String) e.get("songId"),
+                        new double[]{((Number) e.get("ratingAverage")).doubleValue(), ((Number) e.get("ratingCount")).intValue()});
+                case "comment" -> comments.add(Comment.fromMap((Map<?,?>) e.get("comment")));
+                case "vote" -> votes.put((String) e.get("commentId"),
+                        new int[]{((Number) e.get("likes")).intValue(), ((Number) e.get("dislikes")).intValue()});
+                case "import" -> imports.add(e);
+                default -> throw new IllegalArgumentException("unknown op: " + e.get("op"));
+            }
+        }
+        if (!songs.isEmpty()) db.insertSongs(songs);
+        for (Map<String,Object> e : imports) {
+            for (Object o : (List<?>) e.get("users")) {
+                User u = User.fromJson((Map<?,?>) o);
+                db.upsertUser(u);
+                for (String songId : u.purchased) db.insertPurchase(u.id, songId);
+            }
+            List<Song> imported = new ArrayList<>();
+            for (Object o : (List<?>) e.get("songs")) imported.add(Song.fromMap((Map<String,Object>) o));
+            if (!imported.isEmpty()) db.upsertSongs(imported);
+            List<Comment> cms = new ArrayList<>();
+            for (Object o : (List<?>) e.get("comments")) cms.add(Comment.fromMap((Map<?,?>) o));
+            if (!cms.isEmpty()) db.upsertComments(cms);
+        }
+        for (Map<String,Object> e : users) {
+            switch ((String) e.get("op")) {
+                case "user" -> db.upsertUser(User.fromJson((Map<?,?>) e.get("user")));
+                case "credit" -> db.updateUserCredit((String) e.get("userId"), ((Number) e.get("credit")).doubleValue());
+                default -> {
+                    String userId = (String) e.get("userId"), songId = (String) e.get("songId");
+                    db.updateUserCredit(userId, ((Number) e.get("credit")).doubleValue());
+                    db.insertPurchase(userId, songId);
+                    downloads.put(songId, ((Number) e.get("downloads")).intValue());
+                }
+            }
+        }
+        if (!downloads.isEmpty()) db.setSongDownloads(downloads);
+        if (!ratings.isEmpty()) db.updateSongRatings(ratings);
+        if (!comments.isEmpty()) db.insertComments(comments);
+        if (!votes.isEmpty()) db.applyVotes(votes);
+    }
+
+    // صفحه‌ی دسته مستقیم از اندیس (category, addedAt, id)، با همان cursor و ترتیب Catalog.songs. اول تغییرهای
+    // در صف commit می‌شوند تا صفحه نوشته‌های پیش از خودش را ببیند
+    @Override
+    public Catalog.Page songs(String category, String cursor, int limit) {
+        Catalog.Key after = cursor == null ? null : Catalog.key(cursor);
+        int n = Math.min(limit, Catalog.MAX_PAGE);
+        try {
+            commitNow();
+            List<Song> songs = new ArrayList<>(n + 1);
+            for (Map<String,Object> m : db.listSongsByCategory(category,
+                    after == null ? null : Song.iso(after.addedAt()), after == null ? null : after.id(), n + 1)) {
+                songs.add(Song.fromMap(m));
+            }
+            String next = null;
+            if (songs.size() > n) {
+                songs.remove(n);
+                next = Catalog.cursor(songs.get(n - 1));
+            }
+            return new Catalog.Page(songs, next);
+        } catch (SQLException e) {
+            throw new IllegalStateException("sqlite: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted");
+        }
+    }
+
+    // نظرها جدیدترین اول از اندیس (songId) که rowid را هم دارد؛ cursor همان rowid آخرین نظر صفحه است
+    @Override
+    public CommentLog.Page comments(String songId, String cursor, int limit) {
+        long before;
+        try {
+            before = cursor == null ? Long.MAX_VALUE : Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        int n = Math.min(limit, Catalog.MAX_PAGE);
+        try {
+            commitNow();
+            List<Map<String,Object>> rows = db.listCommentsBySong(songId, before, n + 1);
+            String next = null;
+            if (rows.size() > n) {
+                rows.remove(n);
+                next = rows.get(n - 1).get("seq").toString();
+            }
+            List<Comment> comments = new ArrayList<>(rows.size());
+            for (Map<String,Object> m : rows) comments.add(Comment.fromMap(m));
+            return new CommentLog.Page(comments, next);
+        } catch (SQLException e) {
+            throw new IllegalStateException("sqlite: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted");
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        committer.shutdown();
+        committer.awaitTermination(30, TimeUnit.SECONDS);
+        commit();
+        lock.lock();
+        try {
+            if (saved < appended) System.err.println("sqlite: " + (appended - saved) + " entries not saved");
+        } finally { lock.unlock(); }
+        db.close();
+    }
+}
@@ -0,0 +1,35 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Map;
+
+// ====== موتور ذخیره‌سازی ======
+// ServerState کاتالوگ را در حافظه نگه می‌دارد و هر تغییر را به صورت یک ورودی (op و مقدار نهایی فیلدها،
+// همان ورودی ژورنال) به موتور می‌دهد؛ موتور آن را ماندگار می‌کند و هنگام شروع وضعیت را برمی‌گرداند.
+// کاتالوگ با هر دو موتور کامل در heap است و نوشتن‌ها و بیشتر خواندن‌ها از آن است؛ sqlite فقط صفحه‌های songs
+// و comments را مستقیم از جدول‌ها می‌دهد.
+//   json:   Persister (snapshot + ژورنال؛ server-data.json)
+//   sqlite: SqliteStorage (Database)
+interface StorageEngine {
+    // وضعیت ذخیره‌شده را در state نصب می‌کند؛ false یعنی چیزی برای بارگذاری نبود
+    boolean load();
+
+    // کل وضعیت فعلی را ذخیره می‌کند (بعد از seed یا migrate)
+    void checkpoint() throws IOException;
+
+    void start();
+
+    // زیر قفل نویسنده‌ی ServerState و بلافاصله بعد از publish
+    void append(Map<String,Object> entry);
+
+    // تا ماندگار شدن همه‌ی تغییرهای تا این لحظه صبر می‌کند
+    void sync() throws InterruptedException;
+
+    void close() throws InterruptedException, IOException;
+
+    // صفحه‌ای از یک دسته مستقیم از موتور؛ null یعنی صفحه از Catalog در heap می‌آید
+    default Catalog.Page songs(String category, String cursor, int limit) { return null; }
+
+    // صفحه‌ای از نظرهای یک آهنگ؛ null یعنی از CommentLog در heap
+    default CommentLog.Page comments(String songId, String cursor, int limit) { return null; }
+}
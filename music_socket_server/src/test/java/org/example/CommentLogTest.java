@@ -0,0 +1,108 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class CommentLogTest {
+    private static Comment comment(String id) {
+        return new Comment(id, "s1", "u", "t " + id);
+    }
+
+    private static CommentLog log(int n) {
+        CommentLog log = CommentLog.EMPTY;
+        for (int i = 0; i < n; i++) log = log.with(comment("c" + i));
+        return log;
+    }
+
+    private static List<String> ids(List<Comment> comments) {
+        return comments.stream().map(c -> c.id).toList();
+    }
+
+    @Test
+    void appendToStaleVersionLeavesNewerVersionIntact() {
+        CommentLog v1 = log(3);
+        CommentLog v2 = v1.with(comment("new"));
+        CommentLog fork = v1.with(comment("fork"));
+
+        assertEquals(List.of("c0", "c1", "c2"), ids(v1));
+        assertEquals(List.of("c0", "c1", "c2", "new"), ids(v2));
+        assertEquals(List.of("c0", "c1", "c2", "fork"), ids(fork));
+        assertEquals(List.of("c0", "c1", "c2", "new", "more"), ids(v2.with(comment("more"))));
+        assertEquals(List.of("c0", "c1", "c2", "fork", "more"), ids(fork.with(comment("more"))));
+    }
+
+    @Test
+    void appendToStaleVersionAcrossChunkBoundary() {
+        CommentLog full = log(CommentLog.CHUNK);
+        CommentLog v2 = full.with(comment("new"));
+        CommentLog fork = full.with(comment("fork"));
+
+        assertEquals(CommentLog.CHUNK, full.size());
+        assertEquals("new", v2.get(CommentLog.CHUNK).id);
+        assertEquals("fork", fork.get(CommentLog.CHUNK).id);
+        assertEquals("c0", fork.get(0).id);
+    }
+
+    @Test
+    void replaceCopiesOnlyTheChangedVersion() {
+        CommentLog v = log(CommentLog.CHUNK + 10);
+        Comment edited = new Comment("c5", "s1", "u", "edited");
+        CommentLog r = v.replace(5, edited);
+        CommentLog after = v.with(comment("tail"));
+        CommentLog rAfter = r.with(comment("rtail"));
+
+        assertEquals("t c5", v.get(5).text);
+        assertSame(edited, r.get(5));
+        assertEquals("tail", after.get(CommentLog.CHUNK + 10).id);
+        assertEquals("rtail", rAfter.get(CommentLog.CHUNK + 10).id);
+        assertEquals(CommentLog.CHUNK + 10, v.size());
+
+        // نظری در تکه‌ی نیمه‌پر انتها
+        int t = CommentLog.CHUNK + 3;
+        CommentLog rt = v.replace(t, new Comment("c" + t, "s1", "u", "edited"));
+        assertEquals("edited", rt.get(t).text);
+        assertEquals("t c" + t, v.get(t).text);
+        assertEquals("t c" + t, after.get(t).text);
+        assertEquals("rtail", rt.with(comment("rtail")).get(CommentLog.CHUNK + 10).id);
+        assertEquals("tail", after.get(CommentLog.CHUNK + 10).id);
+    }
+
+    @Test
+    void indexOfAndWithout() {
+        CommentLog v = log(20);
+        assertEquals(7, v.indexOf("c7"));
+        assertEquals(-1, v.indexOf("missing"));
+        // نظری که بعد از این نسخه به همان Store اضافه شده در آن دیده نمی‌شود
+        CommentLog later = v.with(comment("later"));
+        assertEquals(20, later.indexOf("later"));
+        assertEquals(-1, v.indexOf("later"));
+
+        CommentLog w = v.without(7);
+        assertEquals(19, w.size());
+        assertEquals(-1, w.indexOf("c7"));
+        assertEquals(7, w.indexOf("c8"));
+        assertEquals(7, v.replace(7, comment("c7")).indexOf("c7"));
+    }
+
+    @Test
+    void pagesNewestFirst() {
+        CommentLog v = log(25);
+        List<String> got = new ArrayList<>();
+        String cursor = null;
+        do {
+            CommentLog.Page p = v.page(cursor, 10);
+            got.addAll(ids(p.comments()));
+            cursor = p.next();
+        } while (cursor != null);
+
+        List<String> expected = new ArrayList<>(ids(v));
+        Collections.reverse(expected);
+        assertEquals(expected, got);
+        assertThrows(IllegalArgumentException.class, () -> v.page("26", 10));
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class HashTrieTest {
+    // کلیدی با hash دلخواه تا برخورد در هر عمق trie ساخته شود
+    private record Key(int hash, String name) {
+        @Override public int hashCode() { return hash; }
+    }
+
+    @Test
+    void plusAndMinusKeepOlderVersions() {
+        HashTrie<String, Integer> empty = HashTrie.empty();
+        HashTrie<String, Integer> one = empty.plus("a", 1);
+        HashTrie<String, Integer> two = one.plus("b", 2);
+        HashTrie<String, Integer> replaced = two.plus("a", 10);
+        HashTrie<String, Integer> removed = replaced.minus("b");
+
+        assertEquals(Map.of(), empty);
+        assertEquals(Map.of("a", 1), one);
+        assertEquals(Map.of("a", 1, "b", 2), two);
+        assertEquals(Map.of("a", 10, "b", 2), replaced);
+        assertEquals(Map.of("a", 10), removed);
+        assertSame(removed, removed.minus("missing"));
+        assertSame(two, two.plus("b", two.get("b")));
+    }
+
+    @Test
+    void fullHashCollision() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        HashTrie<String, Integer> t = HashTrie.<String, Integer>empty().plus("Aa", 1).plus("BB", 2).plus("C#", 3);
+
+        assertEquals(3, t.size());
+        assertEquals(1, t.get("Aa"));
+        assertEquals(2, t.get("BB"));
+        HashTrie<String, Integer> m = t.minus("Aa");
+        assertEquals(Map.of("BB", 2, "C#", 3), m);
+        assertEquals(Map.of(), m.minus("BB").minus("C#"));
+        assertEquals(3, t.size());
+    }
+
+    @Test
+    void keysSharingHashPrefixAtEveryDepth() {
+        // دو کلید در هر جفت فقط در 5 بیت سطح d با هم فرق دارند (یا hash کاملاً یکسان دارند)
+        Map<Key, Integer> expected = new HashMap<>();
+        HashTrie<Key, Integer> t = HashTrie.empty();
+        int base = 0x1234_5678;
+        for (int d = 0; d <= 32; d += 5) {
+            Key a = new Key(base, "a" + d), b = new Key(d < 32 ? base ^ (1 << d) : base, "b" + d);
+            t = t.plus(a, d).plus(b, -d);
+            expected.put(a, d);
+            expected.put(b, -d);
+        }
+        assertEquals(expected, t);
+        assertEquals(expected, HashTrie.of(expected));
+
+        for (Key k : expected.keySet().toArray(new Key[0])) {
+            HashTrie<Key, Integer> before = t;
+            t = t.minus(k);
+            expected.remove(k);
+            assertEquals(expected, t);
+            assertTrue(before.containsKey(k));
+            assertEquals(expected.size() + 1, before.size());
+        }
+        assertTrue(t.isEmpty());
+    }
+
+    @Test
+    void randomOperationsMatchHashMap() {
+        Random rnd = new Random(7);
+        Map<Key, Integer> expected = new HashMap<>();
+        HashTrie<Key, Integer> t = HashTrie.empty();
+        for (int i = 0; i < 20_000; i++) {
+            // hash های کم‌تنوع تا برخوردهای جزئی و کامل زیاد باشند
+            Key k = new Key(rnd.nextInt(64) << rnd.nextInt(28), "k" + rnd.nextInt(3));
+            if (rnd.nextInt(3) == 0) {
+                expected.remove(k);
+                t = t.minus(k);
+            } else {
+                expected.put(k, i);
+                t = t.plus(k, i);
+            }
+            assertEquals(expected.size(), t.size());
+        }
+        assertEquals(expected, t);
+        assertEquals(expected, HashTrie.of(expected));
+    }
+}
@@ -0,0 +1,63 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PersisterTest {
+    @TempDir
+    Path dir;
+
+    private String entry(ServerState state, long v, String id) {
+        return state.gson.toJson(Map.of("op", "comment", "v", v, "comment", new Comment(id, "s1", "u", "t").toMap()));
+    }
+
+    private Persister persister(ServerState state) {
+        return new Persister(state, dir.resolve("server-data.json").toString(), true, 1000, Long.MAX_VALUE);
+    }
+
+    @Test
+    void replayIgnoresTornLastLine() throws IOException {
+        ServerState state = new ServerState();
+        String torn = entry(state, 3, "c3");
+        Files.writeString(dir.resolve("server-data.json.journal.1"),
+                entry(state, 1, "c1") + "\n" + entry(state, 2, "c2") + "\n" + torn.substring(0, torn.length() / 2),
+                StandardCharsets.UTF_8);
+
+        assertTrue(persister(state).load());
+        assertEquals(List.of("c1", "c2"),
+                state.catalog.commentsBySong.get("s1").stream().map(c -> c.id).toList());
+        assertEquals(2, state.catalog.version);
+    }
+
+    @Test
+    void replayRejectsBadLineInTheMiddle() throws IOException {
+        ServerState state = new ServerState();
+        Files.writeString(dir.resolve("server-data.json.journal.1"),
+                entry(state, 1, "c1") + "\n{\"op\":\"comm\n" + entry(state, 2, "c2") + "\n",
+                StandardCharsets.UTF_8);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> persister(state).load());
+        assertTrue(e.getMessage().contains("line 2"), e.getMessage());
+    }
+
+    @Test
+    void replaySkipsEntriesAlreadyInSnapshot() throws IOException {
+        ServerState state = new ServerState();
+        Files.writeString(dir.resolve("server-data.json.journal.1"),
+                entry(state, 1, "c1") + "\n" + entry(state, 1, "dup") + "\n" + entry(state, 2, "c2") + "\n",
+                StandardCharsets.UTF_8);
+
+        assertTrue(persister(state).load());
+        assertEquals(List.of("c1", "c2"),
+                state.catalog.commentsBySong.get("s1").stream().map(c -> c.id).toList());
+    }
+}
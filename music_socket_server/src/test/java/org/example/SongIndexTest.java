@@ -0,0 +1,80 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class SongIndexTest {
+    private static Song song(String id, long addedAt) {
+        Song s = new Song(id, "t", "a", "Pop", 1, 4.5, 0, null, null);
+        s.addedAt = addedAt;
+        return s;
+    }
+
+    // مرز ارتفاع AVL: h < 1.44 log2(n + 2)
+    private static void assertBalanced(SongIndex index) {
+        assertTrue(index.height() < 1.45 * Math.log(index.size() + 2) / Math.log(2),
+                "height " + index.height() + " for " + index.size() + " songs");
+    }
+
+    @Test
+    void staysBalancedUnderSortedInserts() {
+        SongIndex index = SongIndex.EMPTY;
+        List<Song> expected = new ArrayList<>();
+        for (int i = 0; i < 4096; i++) {
+            Song s = song(String.format("s%05d", i), i);
+            index = index.with(s);
+            expected.add(0, s);
+        }
+        assertBalanced(index);
+        assertEquals(expected, index);
+
+        for (int i = 0; i < 4096; i++) index = index.with(song(String.format("r%05d", i), -i));
+        assertBalanced(index);
+    }
+
+    @Test
+    void matchesSortedListAndKeepsOlderVersions() {
+        Random rnd = new Random(11);
+        SongIndex index = SongIndex.EMPTY;
+        List<Song> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            SongIndex before = index;
+            List<Song> beforeSongs = new ArrayList<>(before);
+            Song s = song("s" + rnd.nextInt(1500), rnd.nextInt(200));
+            index = index.with(s);
+            expected.removeIf(x -> x.id.equals(s.id) && x.addedAt == s.addedAt);
+            expected.add(s);
+            expected.sort(Catalog.NEWEST_FIRST);
+            assertEquals(expected.size(), index.size());
+            assertEquals(beforeSongs, before);
+        }
+        assertEquals(expected, index);
+        assertEquals(expected.subList(100, 350), index.range(100, 350));
+        assertBalanced(index);
+        assertEquals(expected, SongIndex.of(expected));
+    }
+
+    @Test
+    void afterReturnsRankOfCursorKey() {
+        List<Song> sorted = new ArrayList<>();
+        for (int i = 0; i < 300; i++) sorted.add(song("s" + (i % 7), i / 3));
+        sorted.sort(Catalog.NEWEST_FIRST);
+        SongIndex index = SongIndex.of(sorted);
+
+        for (int i = 0; i < sorted.size(); i++) {
+            Song s = sorted.get(i);
+            assertEquals(i + 1, index.after(s.addedAt, s.id));
+        }
+        // کلیدی که دیگر در اندیس نیست هم سر جای خودش است
+        assertEquals(0, index.after(Long.MAX_VALUE, "z"));
+        assertEquals(sorted.size(), index.after(Long.MIN_VALUE, ""));
+        int rank = index.after(50, "s3x");
+        assertTrue(Catalog.NEWEST_FIRST.compare(sorted.get(rank - 1), song("s3x", 50)) < 0);
+        assertTrue(Catalog.NEWEST_FIRST.compare(sorted.get(rank), song("s3x", 50)) > 0);
+    }
+}